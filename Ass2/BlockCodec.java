@@ -0,0 +1,39 @@
+/**
+ * Compression of the blocks of a FileSender transfer. The codec is advertised
+ * to the receiver by its ID in the meta-data packet.
+ * 
+ * Blocks are compressed on their own, so that every block can be decompressed
+ * and written to its position in the file as soon as it has arrived.
+ */
+public interface BlockCodec {
+	byte CODEC_NONE = 0;
+	byte CODEC_DEFLATE = 1;
+	
+	byte getId();
+	
+	/**
+	 * Compresses length bytes of src into dst.
+	 * Returns the compressed size, or -1 if it does not fit into dst.
+	 */
+	int compress(byte[] src, int length, byte[] dst);
+	
+	/**
+	 * Decompresses length bytes of src into dst.
+	 * Returns the decompressed size, or -1 if the data is invalid.
+	 */
+	int decompress(byte[] src, int length, byte[] dst);
+	
+	/**
+	 * Returns the codec with the given ID, or null for CODEC_NONE.
+	 */
+	static BlockCodec create(byte id) {
+		switch (id) {
+		case CODEC_NONE:
+			return null;
+		case CODEC_DEFLATE:
+			return new DeflateCodec();
+		default:
+			throw new IllegalArgumentException("Unknown compression codec: " + id);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums of the packets and digests of the whole file, advertised to the
+ * receiver by their IDs in the meta-data packet.
+ * 
+ * The checksum field of a packet is 8 bytes, so a 64-bit checksum fits as well.
+ * CRC32C is computed with a CPU instruction on most platforms, which makes it
+ * cheaper than CRC32 per byte.
+ */
+public final class Checksums {
+	public static final byte CHECKSUM_CRC32 = 0;
+	public static final byte CHECKSUM_CRC32C = 1;
+
+	public static final byte DIGEST_NONE = 0;
+	public static final byte DIGEST_SHA256 = 1;
+	// Largest digest, carried by the ACK -1 in place of the SACK bitmap
+	public static final int MAX_SIZE_DIGEST = 32;
+
+	private Checksums() {}
+
+	public static Checksum createChecksum(byte id) {
+		switch (id) {
+		case CHECKSUM_CRC32:
+			return new CRC32();
+		case CHECKSUM_CRC32C:
+			return new CRC32C();
+		default:
+			throw new IllegalArgumentException("Unknown checksum: " + id);
+		}
+	}
+
+	/**
+	 * Returns a new digest with the given ID, or null for DIGEST_NONE.
+	 */
+	public static MessageDigest createDigest(byte id) {
+		try {
+			switch (id) {
+			case DIGEST_NONE:
+				return null;
+			case DIGEST_SHA256:
+				return MessageDigest.getInstance("SHA-256");
+			default:
+				throw new IllegalArgumentException("Unknown digest: " + id);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static byte getChecksumId(String name) {
+		switch (name.toLowerCase()) {
+		case "crc32":
+			return CHECKSUM_CRC32;
+		case "crc32c":
+			return CHECKSUM_CRC32C;
+		default:
+			throw new IllegalArgumentException("Unknown checksum: " + name);
+		}
+	}
+
+	public static byte getDigestId(String name) {
+		switch (name.toLowerCase()) {
+		case "none":
+			return DIGEST_NONE;
+		case "sha-256":
+		case "sha256":
+			return DIGEST_SHA256;
+		default:
+			throw new IllegalArgumentException("Unknown digest: " + name);
+		}
+	}
+}
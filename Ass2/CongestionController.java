@@ -0,0 +1,32 @@
+/**
+ * Congestion window of a FileSender transfer, driven by the events of the ACK processing path.
+ * 
+ * The sender never has more than min(window size, getWindow()) packets in flight.
+ */
+public interface CongestionController {
+	/**
+	 * Called when new packets have been acknowledged, either by the cumulative ACK or the SACK bitmap.
+	 * rtt is the RTT sample taken from this ACK in nanoseconds, or -1 if there is none (Karn's rule).
+	 */
+	void onAck(int ackedPackets, long rtt);
+	
+	/**
+	 * Called when a loss has been detected through duplicate ACKs (fast retransmit).
+	 */
+	void onLoss();
+	
+	/**
+	 * Called when a retransmission timer has expired.
+	 */
+	void onTimeout();
+	
+	/**
+	 * Returns the congestion window in packets, at least 1.
+	 */
+	int getWindow();
+	
+	/**
+	 * Returns true while the window grows exponentially, which the pacing rate has to keep up with.
+	 */
+	boolean isSlowStart();
+}
@@ -0,0 +1,40 @@
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate (zlib) block compression, reusing one Deflater and Inflater for all the blocks.
+ */
+public class DeflateCodec implements BlockCodec {
+	private Deflater deflater;
+	private Inflater inflater;
+	
+	public DeflateCodec() {
+		// Compression has to keep up with the network, not squeeze out the last few percent
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		inflater = new Inflater();
+	}
+	
+	public byte getId() {
+		return CODEC_DEFLATE;
+	}
+	
+	public int compress(byte[] src, int length, byte[] dst) {
+		deflater.reset();
+		deflater.setInput(src, 0, length);
+		deflater.finish();
+		int size = deflater.deflate(dst);
+		return deflater.finished() ? size : -1;
+	}
+	
+	public int decompress(byte[] src, int length, byte[] dst) {
+		inflater.reset();
+		inflater.setInput(src, 0, length);
+		try {
+			int size = inflater.inflate(dst);
+			return inflater.finished() ? size : -1;
+		} catch (DataFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Delay-based congestion control in the style of TCP Vegas.
+ * 
+ * The number of packets queued in the network is estimated from the
+ * difference between the expected rate (window / base RTT) and the actual
+ * rate (window / RTT). Once per RTT the window grows by one packet if fewer
+ * than ALPHA packets are queued, and shrinks by one if more than BETA are.
+ * Slow start ends as soon as GAMMA packets are queued. Losses are handled
+ * like Reno.
+ */
+public class DelayCongestionController extends RenoCongestionController {
+	public static final double ALPHA = 2;
+	public static final double BETA = 4;
+	public static final double GAMMA = 1;
+	
+	private long baseRtt = Long.MAX_VALUE;
+	private long minRttInRound = Long.MAX_VALUE;
+	// Packets ACKed since the window was last adjusted
+	private int ackedInRound;
+	
+	@Override
+	public void onAck(int ackedPackets, long rtt) {
+		if (rtt > 0) {
+			baseRtt = Math.min(baseRtt, rtt);
+			minRttInRound = Math.min(minRttInRound, rtt);
+		}
+		ackedInRound += ackedPackets;
+		if (ackedInRound < congestionWindow || minRttInRound == Long.MAX_VALUE) {
+			if (congestionWindow < slowStartThreshold) {
+				super.onAck(ackedPackets, rtt);
+			}
+			return;
+		}
+		
+		// One RTT worth of packets has been ACKed
+		double queuedPackets = congestionWindow * (minRttInRound - baseRtt) / minRttInRound;
+		if (congestionWindow < slowStartThreshold) {
+			if (queuedPackets > GAMMA) {
+				slowStartThreshold = congestionWindow;
+			} else {
+				super.onAck(ackedPackets, rtt);
+			}
+		} else if (queuedPackets < ALPHA) {
+			congestionWindow += 1;
+		} else if (queuedPackets > BETA) {
+			congestionWindow = Math.max(1, congestionWindow - 1);
+		}
+		ackedInRound = 0;
+		minRttInRound = Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+
+/**
+ * Turns a range of the source file into delta instructions against the
+ * signature of the basis file at the receiver, one instruction per packet.
+ * 
+ * Literal instruction
+ * 1 byte: DELTA_LITERAL
+ * 8 bytes: Target offset (long) - position in the file
+ * rest of the packet: data (byte[])
+ * 
+ * Copy instruction
+ * 1 byte: DELTA_COPY
+ * 8 bytes: Target offset (long) - position in the file
+ * 8 bytes: Basis offset (long) - position of the data in the basis file
+ * 4 bytes: Size (int) - one or more consecutive blocks of the basis file
+ */
+public class DeltaEncoder {
+	public static final byte DELTA_LITERAL = 0;
+	public static final byte DELTA_COPY = 1;
+	public static final int SIZE_LITERAL_HEADER = 1 + 8;
+	public static final int SIZE_COPY = 1 + 8 + 8 + 4;
+	// Bytes copied by a single instruction, so that the receiver is never busy for too long
+	public static final int MAX_COPY_SIZE = 8 << 20;
+	// Bytes of the source file read at a time
+	private static final int SIZE_READ = 1 << 20;
+	
+	private FileChannel source;
+	private long rangeEnd;
+	private int blockSize;
+	private DeltaSignature signature;
+	// Basis blocks by weak checksum, with the strong checksums alongside
+	private HashMap<Integer, long[]> blocks;
+	// Digest of the source range in order, or null
+	private MessageDigest digest;
+	
+	// Source bytes from bufferOffset, the unsent literal starts at literalOffset
+	private byte[] buffer;
+	private long bufferOffset;
+	private int bufferLength;
+	private long literalOffset;
+	// Scan position and the weak checksum of the block starting there, if isChecksumValid
+	private long scanOffset;
+	private int checksum;
+	private boolean isChecksumValid;
+	// Match that has been found but not sent yet, matchSize is 0 if there is none
+	private long matchOffset, matchBasisOffset;
+	private int matchSize;
+	
+	public DeltaEncoder(FileChannel source, long rangeOffset, long rangeSize, byte[] basisSignature, int blockSize,
+			MessageDigest digest) {
+		this.source = source;
+		this.digest = digest;
+		this.blockSize = blockSize;
+		rangeEnd = rangeOffset + rangeSize;
+		signature = new DeltaSignature();
+		
+		ByteBuffer entries = ByteBuffer.wrap(basisSignature);
+		blocks = new HashMap<Integer, long[]>();
+		for (int i = 0; entries.remaining() >= DeltaSignature.SIZE_ENTRY; i++) {
+			int weak = entries.getInt();
+			long strong = entries.getLong();
+			// {block, strong checksum} pairs, the first block wins for the same strong checksum
+			long[] candidates = blocks.get(weak);
+			if (candidates == null) {
+				blocks.put(weak, new long[] { i, strong });
+			} else {
+				long[] grown = new long[candidates.length + 2];
+				System.arraycopy(candidates, 0, grown, 0, candidates.length);
+				grown[candidates.length] = i;
+				grown[candidates.length + 1] = strong;
+				blocks.put(weak, grown);
+			}
+		}
+		
+		buffer = new byte[Math.max(SIZE_READ, 2 * blockSize)];
+		bufferOffset = rangeOffset;
+		literalOffset = rangeOffset;
+		scanOffset = rangeOffset;
+	}
+	
+	/**
+	 * Puts the next instruction, at most maxSize bytes, at the position of packet.
+	 * Returns its size, or -1 once the whole range has been sent.
+	 */
+	public int next(ByteBuffer packet, int maxSize) throws IOException {
+		int maxLiteral = maxSize - SIZE_LITERAL_HEADER;
+		while (matchSize == 0 && scanOffset - literalOffset < maxLiteral && scanOffset + blockSize <= rangeEnd) {
+			scan();
+		}
+		if (matchSize == 0 && scanOffset + blockSize > rangeEnd) {
+			// Too close to the end for another block, the rest is literal
+			scanOffset = rangeEnd;
+		}
+		
+		// The bytes before a match go out first
+		long literalEnd = matchSize > 0 ? matchOffset : scanOffset;
+		int literalSize = (int) Math.min(literalEnd - literalOffset, maxLiteral);
+		if (literalSize > 0) {
+			fill(literalOffset + literalSize);
+			packet.put(DELTA_LITERAL);
+			packet.putLong(literalOffset);
+			packet.put(buffer, (int) (literalOffset - bufferOffset), literalSize);
+			if (digest != null) {
+				digest.update(buffer, (int) (literalOffset - bufferOffset), literalSize);
+			}
+			literalOffset += literalSize;
+			return SIZE_LITERAL_HEADER + literalSize;
+		}
+		if (matchSize > 0) {
+			packet.put(DELTA_COPY);
+			packet.putLong(matchOffset);
+			packet.putLong(matchBasisOffset);
+			packet.putInt(matchSize);
+			// The copied bytes are still in the buffer, as nothing before the match has been sent yet
+			if (digest != null) {
+				digest.update(buffer, (int) (matchOffset - bufferOffset), matchSize);
+			}
+			literalOffset = matchOffset + matchSize;
+			matchSize = 0;
+			return SIZE_COPY;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Looks for a basis block at scanOffset. On a match, the match is extended over the
+	 * following blocks of the basis file, otherwise the scan moves on by one byte.
+	 */
+	private void scan() throws IOException {
+		fill(scanOffset + blockSize);
+		int start = (int) (scanOffset - bufferOffset);
+		if (!isChecksumValid) {
+			checksum = DeltaSignature.weakChecksum(buffer, start, blockSize);
+			isChecksumValid = true;
+		}
+		long basisBlock = findBlock(start);
+		if (basisBlock == -1) {
+			if (scanOffset + blockSize < rangeEnd) {
+				fill(scanOffset + blockSize + 1);
+				start = (int) (scanOffset - bufferOffset);
+				checksum = DeltaSignature.rollChecksum(checksum, buffer[start], buffer[start + blockSize], blockSize);
+			}
+			scanOffset += 1;
+			return;
+		}
+		
+		matchOffset = scanOffset;
+		matchBasisOffset = basisBlock * blockSize;
+		matchSize = blockSize;
+		scanOffset += blockSize;
+		isChecksumValid = false;
+		// Unchanged files are mostly runs of consecutive blocks, as far as the buffer reaches past the unsent literal
+		while (matchSize + blockSize <= MAX_COPY_SIZE && scanOffset + blockSize <= rangeEnd
+				&& scanOffset + blockSize - literalOffset <= buffer.length) {
+			fill(scanOffset + blockSize);
+			start = (int) (scanOffset - bufferOffset);
+			checksum = DeltaSignature.weakChecksum(buffer, start, blockSize);
+			if (!isBlock(basisBlock + matchSize / blockSize, start)) {
+				isChecksumValid = true;
+				break;
+			}
+			matchSize += blockSize;
+			scanOffset += blockSize;
+		}
+	}
+	
+	/**
+	 * Returns the basis block with the data at start of the buffer, or -1.
+	 */
+	private long findBlock(int start) {
+		long[] candidates = blocks.get(checksum);
+		if (candidates == null) {
+			return -1;
+		}
+		long strong = signature.strongChecksum(buffer, start, blockSize);
+		for (int i = 0; i < candidates.length; i += 2) {
+			if (candidates[i + 1] == strong) {
+				return candidates[i];
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns whether the data at start of the buffer is the given basis block.
+	 */
+	private boolean isBlock(long basisBlock, int start) {
+		long[] candidates = blocks.get(checksum);
+		if (candidates == null) {
+			return false;
+		}
+		for (int i = 0; i < candidates.length; i += 2) {
+			if (candidates[i] == basisBlock) {
+				return candidates[i + 1] == signature.strongChecksum(buffer, start, blockSize);
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Makes sure that the buffer holds the source up to end, dropping what is
+	 * before the unsent literal if it has to make room.
+	 */
+	private void fill(long end) throws IOException {
+		if (end <= bufferOffset + bufferLength) {
+			return;
+		}
+		if (end - literalOffset > buffer.length) {
+			throw new IllegalStateException("Delta buffer too small");
+		}
+		if (end > bufferOffset + buffer.length) {
+			int keep = (int) (bufferOffset + bufferLength - literalOffset);
+			System.arraycopy(buffer, (int) (literalOffset - bufferOffset), buffer, 0, keep);
+			bufferOffset = literalOffset;
+			bufferLength = keep;
+		}
+		ByteBuffer target = ByteBuffer.wrap(buffer, bufferLength, (int) Math.min(buffer.length - bufferLength, rangeEnd - bufferOffset - bufferLength));
+		while (bufferOffset + target.position() < end) {
+			if (source.read(target, bufferOffset + target.position()) == -1) {
+				throw new IOException("Source file has been truncated");
+			}
+		}
+		bufferLength = target.position();
+	}
+}
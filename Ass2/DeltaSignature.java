@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Block checksums of the file a delta transfer is based on, as in rsync.
+ * 
+ * Signature (SIZE_ENTRY bytes per full block of the basis file)
+ * 4 bytes: Weak checksum (int) - rolling, see weakChecksum()
+ * 8 bytes: Strong checksum (long) - first 8 bytes of the MD5 of the block
+ * 
+ * The sender rolls the weak checksum over its file one byte at a time, and
+ * only computes the strong checksum where the weak one matches a block.
+ * The short block at the end of the basis file is left out.
+ */
+public class DeltaSignature {
+	public static final int SIZE_ENTRY = 4 + 8;
+	
+	private MessageDigest md5;
+	
+	public DeltaSignature() {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support MD5
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Reads the whole basis file and returns its signature.
+	 */
+	public byte[] compute(FileChannel basis, int blockSize) throws IOException {
+		long blockCount = basis.size() / blockSize;
+		if (blockCount * SIZE_ENTRY > Integer.MAX_VALUE) {
+			throw new IOException("Basis file has too many blocks: " + blockCount);
+		}
+		ByteBuffer signature = ByteBuffer.allocate((int) (blockCount * SIZE_ENTRY));
+		byte[] block = new byte[blockSize];
+		for (long i = 0; i < blockCount; i++) {
+			ByteBuffer buffer = ByteBuffer.wrap(block);
+			while (buffer.hasRemaining()) {
+				if (basis.read(buffer, i * blockSize + buffer.position()) == -1) {
+					throw new IOException("Basis file has been truncated");
+				}
+			}
+			signature.putInt(weakChecksum(block, 0, blockSize));
+			signature.putLong(strongChecksum(block, 0, blockSize));
+		}
+		return signature.array();
+	}
+	
+	public long strongChecksum(byte[] data, int offset, int length) {
+		md5.reset();
+		md5.update(data, offset, length);
+		return ByteBuffer.wrap(md5.digest()).getLong();
+	}
+	
+	/**
+	 * Adler-32 style checksum: the sum of the bytes in the low half, and the
+	 * sum of the bytes weighted by their distance from the end in the high half.
+	 */
+	public static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0, b = 0;
+		for (int i = 0; i < length; i++) {
+			int value = data[offset + i] & 0xff;
+			a += value;
+			b += (length - i) * value;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+	
+	/**
+	 * Moves the weak checksum of a block of length bytes forward by one byte.
+	 */
+	public static int rollChecksum(int checksum, byte out, byte in, int length) {
+		int a = checksum & 0xffff;
+		int b = checksum >>> 16;
+		a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+		b = (b - length * (out & 0xff) + a) & 0xffff;
+		return a | (b << 16);
+	}
+}
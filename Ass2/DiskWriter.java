@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-behind stage of the FileReceiver, so that a slow disk does not stop it from reading the socket.
+ * 
+ * The receiving thread copies the payloads into a ring buffer and goes back to the socket, and a writer
+ * thread writes them to their files. Payloads that are next to each other both in the ring and in the
+ * same file, which is the case for packets that arrive in order, are written with a single positional
+ * write of up to MAX_WRITE_SIZE bytes. The ring only has a single producer and a single consumer, so it
+ * is coordinated with the volatile head and tail counters, and a thread only parks while the ring is
+ * full or empty.
+ * 
+ * The data is not in the file until flush() has returned, which has to be called before the file is closed.
+ * A part of the file can be read back once flush(channel, position, length) has returned, which only waits
+ * for the writes that overlap it. A copy queued with copy() is written from another file instead of the ring,
+ * in order with the writes around it. An action queued with barrier() runs on the writer thread once everything
+ * queued before it has been written, e.g. to force a file to disk without holding up the producer. An error
+ * of the writer thread is thrown by the next call to write() or flush(). The writer also forces the files
+ * it has written to every syncInterval ns, 0 after every write and Long.MAX_VALUE for never.
+ */
+public class DiskWriter implements Runnable {
+	public static final int RING_SIZE = 8 << 20;
+	public static final int MAX_WRITES = 16384;
+	public static final int MAX_WRITE_SIZE = 4 << 20;
+	// Longest a thread parks before checking the ring again, in case a wake-up is missed (ns)
+	public static final long PARK_TIMEOUT = 10000000;
+	
+	// Views of the ring for the producer and the writer thread
+	private final ByteBuffer ring, produceView, writeView;
+	// Pending writes, copies and barriers, entry i % MAX_WRITES
+	private final FileChannel[] channels;
+	private final Runnable[] barriers;
+	// File and position a copy reads from, the copy takes no bytes in the ring
+	private final FileChannel[] sources;
+	private final long[] sourcePositions;
+	private final long[] positions;
+	private final int[] offsets, lengths;
+	// Bytes appended to the ring up to the end of the entry, including the gaps skipped to wrap around
+	private final long[] byteEnds;
+	// Entries and bytes appended by the producer, and written out by the writer thread
+	private volatile long head, tail;
+	private volatile long byteTail;
+	private long byteHead;
+	private volatile boolean isProducerWaiting, isWriterWaiting, isClosed;
+	private volatile IOException error;
+	private Thread producer, writer;
+	
+	private volatile long syncInterval;
+	private final HashSet<FileChannel> unsyncedChannels;
+	private long lastSyncTime;
+	private final TransferMetrics metrics;
+	
+	public DiskWriter(long syncInterval, TransferMetrics metrics) {
+		this.syncInterval = syncInterval;
+		this.metrics = metrics;
+		ring = ByteBuffer.allocateDirect(RING_SIZE);
+		produceView = ring.duplicate();
+		writeView = ring.duplicate();
+		channels = new FileChannel[MAX_WRITES];
+		barriers = new Runnable[MAX_WRITES];
+		sources = new FileChannel[MAX_WRITES];
+		sourcePositions = new long[MAX_WRITES];
+		positions = new long[MAX_WRITES];
+		offsets = new int[MAX_WRITES];
+		lengths = new int[MAX_WRITES];
+		byteEnds = new long[MAX_WRITES];
+		unsyncedChannels = new HashSet<FileChannel>();
+	}
+	
+	/**
+	 * Sets how often the written files are forced to disk (ns), 0 after every write and Long.MAX_VALUE for never.
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+	
+	public void start() {
+		writer = new Thread(this, "DiskWriter");
+		// close() writes out what is left, the thread must not keep a failed receiver alive
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Queues the bytes from the position to the limit of data to be written at position in the channel.
+	 * The position of data is left at its limit. Waits while the ring is full.
+	 */
+	public void write(FileChannel channel, long position, ByteBuffer data) throws IOException {
+		throwError();
+		int limit = data.limit();
+		while (data.hasRemaining()) {
+			int length = Math.min(data.remaining(), MAX_WRITE_SIZE);
+			int offset = (int) (byteHead % RING_SIZE);
+			if (offset + length > RING_SIZE) {
+				// Skip the end of the ring, so that every write is contiguous
+				byteHead += RING_SIZE - offset;
+				offset = 0;
+			}
+			long observedTail;
+			// byteTail moves before tail, so a full ring is seen again without parking
+			while (head - (observedTail = tail) == MAX_WRITES || byteHead + length - byteTail > RING_SIZE) {
+				awaitWriter(observedTail);
+			}
+			produceView.clear();
+			produceView.position(offset);
+			data.limit(data.position() + length);
+			produceView.put(data);
+			data.limit(limit);
+			
+			int entry = (int) (head % MAX_WRITES);
+			channels[entry] = channel;
+			positions[entry] = position;
+			offsets[entry] = offset;
+			lengths[entry] = length;
+			byteHead += length;
+			byteEnds[entry] = byteHead;
+			position += length;
+			// Publishes the entry to the writer thread
+			head += 1;
+			if (isWriterWaiting) {
+				LockSupport.unpark(writer);
+			}
+		}
+	}
+	
+	/**
+	 * Queues a copy of length bytes at sourcePosition in source to position in the channel. Only the writer
+	 * thread may use the position of source until the copy has been written. Waits while the ring is full.
+	 */
+	public void copy(FileChannel source, long sourcePosition, FileChannel channel, long position, int length) throws IOException {
+		throwError();
+		long observedTail;
+		while (head - (observedTail = tail) == MAX_WRITES) {
+			awaitWriter(observedTail);
+		}
+		int entry = (int) (head % MAX_WRITES);
+		sources[entry] = source;
+		sourcePositions[entry] = sourcePosition;
+		channels[entry] = channel;
+		positions[entry] = position;
+		lengths[entry] = length;
+		byteEnds[entry] = byteHead;
+		head += 1;
+		if (isWriterWaiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	/**
+	 * Queues an action to be run by the writer thread once everything queued before it has been written.
+	 * The action has to handle its own errors. Waits while the ring is full.
+	 */
+	public void barrier(Runnable action) throws IOException {
+		throwError();
+		long observedTail;
+		while (head - (observedTail = tail) == MAX_WRITES) {
+			awaitWriter(observedTail);
+		}
+		int entry = (int) (head % MAX_WRITES);
+		barriers[entry] = action;
+		lengths[entry] = 0;
+		byteEnds[entry] = byteHead;
+		head += 1;
+		if (isWriterWaiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	/**
+	 * Waits until the writes queued so far that overlap the length bytes at position in the channel have been
+	 * written, so that they can be read back. Anything else may still be in the ring.
+	 */
+	public void flush(FileChannel channel, long position, long length) throws IOException {
+		// The last overlapping entry, the writer thread writes them in order
+		long last = -1;
+		for (long i = head - 1; i >= tail; i--) {
+			int entry = (int) (i % MAX_WRITES);
+			// Entries are cleared once they have been written, which is also fine
+			if (channels[entry] == channel && positions[entry] < position + length && position < positions[entry] + lengths[entry]) {
+				last = i;
+				break;
+			}
+		}
+		long observedTail;
+		while ((observedTail = tail) <= last) {
+			awaitWriter(observedTail);
+		}
+		throwError();
+	}
+	
+	/**
+	 * Waits until everything queued so far has been written to the files.
+	 */
+	public void flush() throws IOException {
+		long observedTail;
+		while ((observedTail = tail) != head) {
+			awaitWriter(observedTail);
+		}
+		throwError();
+	}
+	
+	/**
+	 * Writes everything out and stops the writer thread.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			isClosed = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Parks until the writer thread has moved the tail past observedTail.
+	 */
+	private void awaitWriter(long observedTail) {
+		producer = Thread.currentThread();
+		isProducerWaiting = true;
+		// The writer checks the flag after moving the tail, so one of them sees the other
+		if (tail == observedTail) {
+			LockSupport.parkNanos(this, PARK_TIMEOUT);
+		}
+		isProducerWaiting = false;
+	}
+	
+	private void throwError() throws IOException {
+		IOException e = error;
+		if (e != null) {
+			error = null;
+			throw e;
+		}
+	}
+	
+	public void run() {
+		lastSyncTime = System.nanoTime();
+		while (true) {
+			long end = head;
+			if (end == tail) {
+				if (isClosed) {
+					break;
+				}
+				syncIfDue();
+				isWriterWaiting = true;
+				// The producer checks the flag after moving the head, so one of them sees the other
+				if (head == end && !isClosed) {
+					LockSupport.parkNanos(this, PARK_TIMEOUT);
+				}
+				isWriterWaiting = false;
+				continue;
+			}
+			
+			long next = tail;
+			int entry = (int) (next % MAX_WRITES);
+			Runnable barrier = barriers[entry];
+			if (barrier != null) {
+				barriers[entry] = null;
+				barrier.run();
+				// byteTail stays, a barrier takes no bytes
+				tail = next + 1;
+				if (isProducerWaiting) {
+					LockSupport.unpark(producer);
+				}
+				continue;
+			}
+			FileChannel source = sources[entry];
+			if (source != null) {
+				sources[entry] = null;
+				writeCopy(source, sourcePositions[entry], channels[entry], positions[entry], lengths[entry]);
+				channels[entry] = null;
+				// byteTail stays, a copy takes no bytes
+				tail = next + 1;
+				if (isProducerWaiting) {
+					LockSupport.unpark(producer);
+				}
+				syncIfDue();
+				continue;
+			}
+			
+			// Coalesce the entries that continue the first one both in the ring and in its file
+			FileChannel channel = channels[entry];
+			long position = positions[entry];
+			int offset = offsets[entry];
+			int length = lengths[entry];
+			next += 1;
+			while (next < end && length < MAX_WRITE_SIZE) {
+				int nextEntry = (int) (next % MAX_WRITES);
+				if (sources[nextEntry] != null || channels[nextEntry] != channel || positions[nextEntry] != position + length
+						|| offsets[nextEntry] != offset + length) {
+					break;
+				}
+				length += lengths[nextEntry];
+				next += 1;
+			}
+			try {
+				writeView.limit(offset + length);
+				writeView.position(offset);
+				while (writeView.hasRemaining()) {
+					channel.write(writeView, position + writeView.position() - offset);
+				}
+				if (metrics != null) {
+					metrics.onDiskWrite();
+				}
+				if (syncInterval != Long.MAX_VALUE) {
+					unsyncedChannels.add(channel);
+				}
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+			for (long i = tail; i < next; i++) {
+				// Let the channels of finished files be collected
+				channels[(int) (i % MAX_WRITES)] = null;
+			}
+			byteTail = byteEnds[(int) ((next - 1) % MAX_WRITES)];
+			// Frees the entries and their bytes for the producer
+			tail = next;
+			if (isProducerWaiting) {
+				LockSupport.unpark(producer);
+			}
+			syncIfDue();
+		}
+	}
+	
+	private void writeCopy(FileChannel source, long sourcePosition, FileChannel channel, long position, int length) {
+		try {
+			// transferFrom reads from the current position of the source
+			source.position(sourcePosition);
+			long copied = 0;
+			while (copied < length) {
+				long count = channel.transferFrom(source, position + copied, length - copied);
+				if (count <= 0) {
+					throw new IOException("Unable to copy from " + (sourcePosition + copied) + ", the source file is shorter");
+				}
+				copied += count;
+			}
+			if (metrics != null) {
+				metrics.onDiskWrite();
+			}
+			if (syncInterval != Long.MAX_VALUE) {
+				unsyncedChannels.add(channel);
+			}
+		} catch (IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+	}
+	
+	private void syncIfDue() {
+		long now = System.nanoTime();
+		if (unsyncedChannels.isEmpty() || now - lastSyncTime < syncInterval) {
+			return;
+		}
+		for (FileChannel channel : unsyncedChannels) {
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// The file is finished and has been closed
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		unsyncedChannels.clear();
+		lastSyncTime = now;
+	}
+}
@@ -0,0 +1,205 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8): dataShards data packets
+ * are sent as they are, followed by parityShards parity packets, and any
+ * dataShards of them are enough to rebuild the data.
+ * 
+ * The parity coefficients are a Cauchy matrix with every column scaled so that
+ * the first parity packet is the plain XOR of the data packets. Every square
+ * submatrix of it is invertible, so any combination of lost data packets can be
+ * rebuilt from the same number of parity packets.
+ */
+public class ErasureCode {
+	public static final int MAX_SHARDS = 255;
+	
+	// x^8 + x^4 + x^3 + x^2 + 1
+	private static final int PRIMITIVE_POLYNOMIAL = 0x11d;
+	// Powers of the generator, twice over so that the sum of two logarithms needs no modulo
+	private static final int[] EXP = new int[2 * 255];
+	private static final int[] LOG = new int[256];
+	
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			EXP[i + 255] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if ((x & 0x100) != 0) {
+				x ^= PRIMITIVE_POLYNOMIAL;
+			}
+		}
+	}
+	
+	private int dataShards, parityShards;
+	// Coefficient of data shard i in parity shard j is coefficients[j][i]
+	private int[][] coefficients;
+	
+	public ErasureCode(int dataShards, int parityShards) {
+		if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > MAX_SHARDS) {
+			throw new IllegalArgumentException("Invalid erasure code: " + dataShards + "+" + parityShards);
+		}
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+		coefficients = new int[parityShards][dataShards];
+		for (int j = 0; j < parityShards; j++) {
+			for (int i = 0; i < dataShards; i++) {
+				// Cauchy matrix 1 / (x_j + y_i) with x_j = dataShards + j and y_i = i, column scaled by x_0 + y_i
+				coefficients[j][i] = multiply(inverse((dataShards + j) ^ i), dataShards ^ i);
+			}
+		}
+	}
+	
+	public int getDataShards() {
+		return dataShards;
+	}
+	
+	public int getParityShards() {
+		return parityShards;
+	}
+	
+	/**
+	 * Adds the length bytes of data shard dataIndex at offset of data to all the parity shards.
+	 * The parity shards start out zeroed and the positions of the buffers are not changed.
+	 */
+	public void encode(ByteBuffer data, int offset, int length, int dataIndex, ByteBuffer[] parity) {
+		for (int j = 0; j < parityShards; j++) {
+			addMultiple(parity[j], data, offset, length, coefficients[j][dataIndex]);
+		}
+	}
+	
+	/**
+	 * Rebuilds the missing (null) data shards from the parity shards that have
+	 * been received (not null). Every shard is as long as the longest data shard,
+	 * shorter ones are padded with zeros. data may be shorter than dataShards
+	 * for the last group of a file. Returns false if there is not enough parity.
+	 */
+	public boolean decode(ByteBuffer[] data, ByteBuffer[] parity) {
+		int[] missing = new int[data.length];
+		int missingCount = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] == null) {
+				missing[missingCount++] = i;
+			}
+		}
+		int[] rows = new int[missingCount];
+		int rowCount = 0;
+		int shardSize = 0;
+		for (int j = 0; j < parityShards && rowCount < missingCount; j++) {
+			if (parity[j] != null) {
+				rows[rowCount++] = j;
+				shardSize = parity[j].capacity();
+			}
+		}
+		if (rowCount < missingCount) {
+			return false;
+		}
+		
+		// Take the present data out of the parity, leaving only the missing data in it
+		ByteBuffer[] remainders = new ByteBuffer[missingCount];
+		for (int r = 0; r < missingCount; r++) {
+			remainders[r] = ByteBuffer.allocate(shardSize);
+			addMultiple(remainders[r], parity[rows[r]], 0, shardSize, 1);
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] != null) {
+					addMultiple(remainders[r], data[i], 0, shardSize, coefficients[rows[r]][i]);
+				}
+			}
+		}
+		
+		int[][] matrix = new int[missingCount][missingCount];
+		for (int r = 0; r < missingCount; r++) {
+			for (int c = 0; c < missingCount; c++) {
+				matrix[r][c] = coefficients[rows[r]][missing[c]];
+			}
+		}
+		int[][] inverse = invert(matrix);
+		for (int c = 0; c < missingCount; c++) {
+			ByteBuffer shard = ByteBuffer.allocate(shardSize);
+			for (int r = 0; r < missingCount; r++) {
+				addMultiple(shard, remainders[r], 0, shardSize, inverse[c][r]);
+			}
+			data[missing[c]] = shard;
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds coefficient times the length bytes of src at offset to the start of dst.
+	 */
+	private static void addMultiple(ByteBuffer dst, ByteBuffer src, int offset, int length, int coefficient) {
+		if (coefficient == 0) {
+			return;
+		}
+		int i = 0;
+		if (coefficient == 1) {
+			// Addition in GF(2^8) is XOR, done a long at a time
+			for (; i + 8 <= length; i += 8) {
+				dst.putLong(i, dst.getLong(i) ^ src.getLong(offset + i));
+			}
+			for (; i < length; i++) {
+				dst.put(i, (byte) (dst.get(i) ^ src.get(offset + i)));
+			}
+			return;
+		}
+		int[] products = new int[256];
+		for (int b = 1; b < 256; b++) {
+			products[b] = multiply(coefficient, b);
+		}
+		for (; i < length; i++) {
+			dst.put(i, (byte) (dst.get(i) ^ products[src.get(offset + i) & 0xff]));
+		}
+	}
+	
+	/**
+	 * Gauss-Jordan elimination, the matrix is known to be invertible.
+	 */
+	private static int[][] invert(int[][] matrix) {
+		int n = matrix.length;
+		int[][] inverse = new int[n][n];
+		for (int i = 0; i < n; i++) {
+			inverse[i][i] = 1;
+		}
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			while (matrix[pivot][col] == 0) {
+				pivot++;
+			}
+			int[] temp = matrix[pivot];
+			matrix[pivot] = matrix[col];
+			matrix[col] = temp;
+			temp = inverse[pivot];
+			inverse[pivot] = inverse[col];
+			inverse[col] = temp;
+			
+			int scale = inverse(matrix[col][col]);
+			for (int c = 0; c < n; c++) {
+				matrix[col][c] = multiply(matrix[col][c], scale);
+				inverse[col][c] = multiply(inverse[col][c], scale);
+			}
+			for (int r = 0; r < n; r++) {
+				int factor = matrix[r][col];
+				if (r == col || factor == 0) {
+					continue;
+				}
+				for (int c = 0; c < n; c++) {
+					matrix[r][c] ^= multiply(factor, matrix[col][c]);
+					inverse[r][c] ^= multiply(factor, inverse[col][c]);
+				}
+			}
+		}
+		return inverse;
+	}
+	
+	private static int multiply(int a, int b) {
+		if (a == 0 || b == 0) {
+			return 0;
+		}
+		return EXP[LOG[a] + LOG[b]];
+	}
+	
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+}
@@ -1,32 +1,32 @@
 /**
- * Meta-data packet (total size: 1000 bytes)
- * 8 bytes: Checksum (long)
- * 4 bytes: Sequence number (int)
- * 255 bytes: Destination File Path (String) 
- * 8 bytes: File Size (long)
- * 
- * Data packet (total size: 1000 bytes)
- * 8 bytes: Checksum (long)
- * 4 bytes: Sequence number (int)
- * 4 bytes: attached data size (int)
- * 1500-8-4-4 bytes: data (byte[])
- * 
- * ACK packet 
- * 8 bytes: Checksum (long)
- * 4 bytes: Sequence number (int)
+ * Receives files sent by FileSender, see FileSender for the packet formats.
  */
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class FileReceiver {
 	//All the units are in BYTES
@@ -36,174 +36,1448 @@ public class FileReceiver {
 	public static final int SIZE_DEST_FPATH = 255;
 	public static final int SIZE_FILESIZE = 8;
 	public static final int SIZE_SEQNUM = 4;
+	public static final int SIZE_SESSION_ID = 4;
 	public static final int SIZE_ATTACHEDDATASIZE = 4;
+	public static final int SIZE_TRANSFER_MODE = 1;
+	public static final int SIZE_WINDOW_SIZE = 4;
+	public static final int SIZE_PACKET_SIZE = 4;
+	public static final int SIZE_RANGE = 8 + 8;
+	public static final int SIZE_FILE_VERSION = 8;
+	public static final int SIZE_FEC = 1 + 1;
+	public static final int SIZE_COMPRESSION = 1 + 4;
+	public static final int SIZE_BLOCK_HEADER = 8 + 4 + 4;
+	public static final int SIZE_DELTA = 4;
+	public static final int SIZE_INTEGRITY = 1 + 1;
+	public static final int SIZE_EARLY_DATA = 1;
+	public static final int SIZE_SIGNATURE_REQUEST = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + 4;
+	public static final int SIZE_SIGNATURE_HEADER = SIZE_CHECKSUM + SIZE_SEQNUM + 4;
+	public static final int SIZE_FIN_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + 8;
 	public static final int SIZE_DATA_PACKET = 1000;
-	public static final int SIZE_METADATA_PACKET = SIZE_CHECKSUM + SIZE_DEST_FPATH + SIZE_FILESIZE + SIZE_SEQNUM;
-	public static final int SIZE_DATA = SIZE_DATA_PACKET - SIZE_CHECKSUM - SIZE_SEQNUM - SIZE_ATTACHEDDATASIZE;
-	public static final int SIZE_ACK_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM;
-	// Maximum number of positive integers that can be represented by int (2^31 - 1)
-	// but sunfire doesnt allow this. Use 2500000 instead.
-	public static final int MAX_SEQNUM = 2500000; 
+	// Largest UDP payload over IPv4
+	public static final int MAX_SIZE_DATA_PACKET = 65507;
+	public static final int SIZE_METADATA_PACKET = SIZE_CHECKSUM + SIZE_DEST_FPATH + SIZE_FILESIZE + SIZE_SEQNUM
+			+ SIZE_SESSION_ID + SIZE_TRANSFER_MODE + SIZE_WINDOW_SIZE + SIZE_PACKET_SIZE + SIZE_RANGE
+			+ SIZE_FILE_VERSION + SIZE_FEC + SIZE_COMPRESSION + SIZE_DELTA + SIZE_INTEGRITY + SIZE_EARLY_DATA;
+	public static final int SIZE_DATA_HEADER = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + SIZE_ATTACHEDDATASIZE;
+	public static final int SIZE_SACK_BITMAP = 32;
+	public static final int SIZE_ACK_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SACK_BITMAP;
+	
+	public static final byte MODE_GO_BACK_N = 0;
+	public static final byte MODE_SELECTIVE_REPEAT = 1;
+	// Sequence number of the FIN-ACK
+	public static final int ACK_FIN = -2;
+	// Sequence number of the ACK of the meta-data packet, a cumulative ACK 0 is a duplicate ACK while packet 1 is missing
+	public static final int ACK_METADATA = -3;
+	// Most data or parity packets of a stream, so that the sequence number after the last one still fits in an int
+	public static final int MAX_SEQNUM = Integer.MAX_VALUE - 1;
+	// Number of in-order packets covered by a single delayed ACK
+	public static final int ACK_FREQUENCY = 2;
+	// Time to hold a delayed ACK while waiting for the next packet (ms)
+	public static final int DELAYED_ACK_TIMEOUT = 1;
+	// Time without packets after which an unfinished stream is given up (ms)
+	public static final int STREAM_TIMEOUT = 60000;
+	// Time a finished stream without a FIN is kept to answer retransmissions whose ACK -1 was lost (ms)
+	public static final int STREAM_LINGER_TIMEOUT = 5000;
+	// Interval between checks for idle streams (ms)
+	public static final int IDLE_CHECK_INTERVAL = 1000;
+	// Socket receive buffer requested from the kernel, to absorb bursts while the receiver is busy (capped by rmem_max)
+	public static final int RECEIVE_BUFFER_SIZE = 4 << 20;
+	// Interval between saves of the receive journal (ms)
+	public static final int JOURNAL_INTERVAL = 1000;
+	// The file is built here during delta sync
+	public static final String DELTA_SUFFIX = ".delta";
+	
+	public static final String USAGE = "Usage: FileReceiver <incoming_port> [max_packet_size] [daemon=true|false] [stats=<ms>] [jmx=true|false] [fsync=none|close|always|<ms>]";
+	
+	/**
+	 * State of one destination file, which may be sent by several streams.
+	 */
+	private static class Session {
+		int sessionId;
+		String destFilePath;
+		long destFileSize;
+		FileChannel fileChannel;
+		long accumulatedDataSize;
+		// Streams of the session that have not been removed yet
+		int streamCount;
+		ReceiveJournal journal;
+		// Data has been written since the journal was last saved
+		boolean isJournalDirty;
+		// Delta sync, the basis is the old destination file and fileChannel the new one
+		FileChannel basisChannel;
+		long basisSize;
+		Future<byte[]> signature;
+		// Counters of this file, which also add up to the metrics of the receiver
+		TransferMetrics metrics;
+		
+		boolean isDelta() {
+			return basisChannel != null;
+		}
+		
+		boolean isComplete() {
+			return accumulatedDataSize >= destFileSize;
+		}
+	}
+	
+	/**
+	 * Compressed block whose fragments are being collected.
+	 */
+	private static class Block {
+		byte[] payload;
+		int receivedSize;
+		
+		Block(int payloadSize) {
+			payload = new byte[payloadSize];
+		}
+	}
+	
+	/**
+	 * State of one sender socket, which sends a byte range of the destination file.
+	 */
+	private static class Stream {
+		Session session;
+		SocketAddress address;
+		// Data packets received so far, only has to cover the receiver window
+		ReceivedSet packetReceived;
+		byte transferMode;
+		int windowSize;
+		// Size negotiated with the sender
+		int dataPacketSize, dataSize;
+		long rangeOffset, rangeSize;
+		// Bytes at the start of the requested range that were already on disk, not part of rangeOffset and rangeSize
+		long resumedSize;
+		long accumulatedDataSize;
+		// Next in-order sequence number to be written to the file
+		int expectedSeqNum = 1;
+		// In-order packets received since the last ACK was sent, and System.nanoTime() by which it is sent anyway
+		int delayedAckCount;
+		long delayedAckDeadline;
+		// System.nanoTime() of the last valid packet
+		long lastPacketTime;
+		// Forward error correction, parity of the groups with missing packets by group number
+		ErasureCode erasureCode;
+		HashMap<Integer, ByteBuffer[]> parityGroups;
+		// Compression, blocks are numbered from 0 at rangeOffset
+		BlockCodec codec;
+		int blockSize;
+		HashMap<Long, Block> blocks;
+		ReceivedSet blocksWritten;
+		byte[] rawBlock;
+		// Negotiated checksum of the packets after the meta-data packet
+		Checksum checksum;
+		// Digest of the range up to expectedSeqNum. Selective Repeat keeps the data of the packets received out of
+		// order in their slot (seqNum % windowSize) until then, and the copies out of the basis by offset and size
+		MessageDigest digest;
+		ByteBuffer[] undigestedData;
+		long[] undigestedCopyOffsets;
+		int[] undigestedCopySizes;
+		byte[] digestValue;
+		
+		long getLastSeqNum() {
+			return (rangeSize + dataSize - 1) / dataSize;
+		}
+		
+		int getPacketSize(int seqNum) {
+			return (int) Math.min(dataSize, rangeSize - (long) (seqNum - 1) * dataSize);
+		}
+		
+		boolean isComplete() {
+			return accumulatedDataSize >= rangeSize;
+		}
+		
+		/**
+		 * Bytes of the range that have been received in order.
+		 */
+		long getReceivedPrefix() {
+			if (codec != null) {
+				return Math.min(blocksWritten.getFirstMissing() * blockSize, rangeSize);
+			}
+			return Math.min((long) (expectedSeqNum - 1) * dataSize, rangeSize);
+		}
+	}
 	
 	private InetSocketAddress addr;
-	private DatagramSocket sk;
-	private DatagramPacket pkt;
+	// Non-blocking channel, the selector waits for packets with the delayed ACK timeout
+	private DatagramChannel channel;
+	private Selector selector;
+	// Packets with sequence number 0 and their ACKs are checked with CRC32, as they negotiate the checksum
 	private CRC32 crc;
-	private ByteBuffer packetBuffer;
-	private BufferedOutputStream bos;
-	private SocketAddress sourceSocketAddress;
+	private PacketBufferPool bufferPool;
+	// Blocks copied out of the basis file by delta sync are read into it for the digest
+	private ByteBuffer digestBuffer;
+	// Zero data of the zero packets, never written to
+	private ByteBuffer zeroPacket;
+	// Direct buffers of the incoming packet and the outgoing ACK
+	private ByteBuffer packetBuffer, ackBuffer;
+	// Streams by the address of their sender socket, and sessions by their ID
+	private HashMap<SocketAddress, Stream> streams;
+	private HashMap<Integer, Session> sessions;
+	// Streams holding back a delayed ACK
+	private ArrayList<Stream> delayedAckStreams;
+	private long lastIdleCheckTime, lastJournalTime;
+	// Largest data packet this receiver accepts
+	private int maxDataPacketSize;
+	// Keep receiving files instead of returning after the first one
+	private boolean isDaemon;
+	// Without daemon, a file is complete and the receiver returns once its streams are gone
+	private boolean isFinished;
+	// Total of all the sessions, which get their own metrics registered and reported the same way
+	private TransferMetrics metrics;
+	private boolean isJmxEnabled;
+	private long statsInterval;
+	// Write-behind stage of the data, and whether a file is forced to disk before it is reported complete
+	private DiskWriter diskWriter;
+	private boolean isSyncedOnClose;
+	private ExecutorService signatureExecutor;
 	
 	private static Logger log;
-	private static byte[] incomingPacket;
-	private static boolean[] packetReceived;
-	private static String destFilePath;
-	private static long destFileSize;
-	private static int accumulatedDataSize;
 	
 	public FileReceiver (int incomingPort) {
+		this(incomingPort, MAX_SIZE_DATA_PACKET);
+	}
+	
+	public FileReceiver (int incomingPort, int maxPacketSize) {
+		this(incomingPort, maxPacketSize, false);
+	}
+	
+	public FileReceiver (int incomingPort, int maxPacketSize, boolean isDaemon) {
+		maxDataPacketSize = maxPacketSize;
+		this.isDaemon = isDaemon;
 		log = Logger.getLogger(FileReceiver.class.getName());
-		packetReceived = new boolean[MAX_SEQNUM]; 
+		addr = new InetSocketAddress(incomingPort);
 		try {
-			sk = new DatagramSocket(incomingPort);
-		} catch (SocketException e) {
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			channel.bind(addr);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
 			System.out.println("Unable to create a socket at port: " + incomingPort);
 		}
 		crc = new CRC32();
-		incomingPacket = new byte[SIZE_DATA_PACKET]; 
-		packetBuffer = ByteBuffer.wrap(incomingPacket);
-		pkt = new DatagramPacket(incomingPacket, SIZE_DATA_PACKET);
-		accumulatedDataSize = 0;
+		// Early data may come in packets of SIZE_DATA_PACKET
+		bufferPool = new PacketBufferPool(2, Math.max(maxDataPacketSize, SIZE_DATA_PACKET));
+		packetBuffer = bufferPool.acquire();
+		ackBuffer = bufferPool.acquire();
+		digestBuffer = ByteBuffer.allocate(1 << 16);
+		zeroPacket = ByteBuffer.allocate(bufferPool.getBufferSize());
+		streams = new HashMap<SocketAddress, Stream>();
+		sessions = new HashMap<Integer, Session>();
+		delayedAckStreams = new ArrayList<Stream>();
+		lastIdleCheckTime = System.nanoTime();
+		lastJournalTime = lastIdleCheckTime;
+		metrics = new TransferMetrics("FileReceiver", Integer.toString(incomingPort));
+		diskWriter = new DiskWriter(Long.MAX_VALUE, metrics);
+		diskWriter.start();
+	}
+	
+	/**
+	 * Sets when the files are forced to disk: none (only for the journal), close (before a file
+	 * is reported complete), always (after every write as well) or at an interval in ms.
+	 */
+	public void setSyncPolicy(String policy) {
+		switch (policy.toLowerCase()) {
+		case "none":
+			diskWriter.setSyncInterval(Long.MAX_VALUE);
+			isSyncedOnClose = false;
+			break;
+		case "close":
+			diskWriter.setSyncInterval(Long.MAX_VALUE);
+			isSyncedOnClose = true;
+			break;
+		case "always":
+			diskWriter.setSyncInterval(0);
+			isSyncedOnClose = true;
+			break;
+		default:
+			long interval;
+			try {
+				interval = Long.parseLong(policy);
+			} catch (NumberFormatException e) {
+				interval = -1;
+			}
+			if (interval <= 0) {
+				throw new IllegalArgumentException("Unknown fsync policy: " + policy);
+			}
+			diskWriter.setSyncInterval(interval * 1000000);
+			isSyncedOnClose = true;
+		}
+	}
+	
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Registers the metrics as an MBean and prints their stats line every statsInterval ms (0 for never),
+	 * the total of the receiver from now on and every session once it starts.
+	 */
+	public void setMetricsReporting(boolean isJmxEnabled, long statsInterval) {
+		this.isJmxEnabled = isJmxEnabled;
+		this.statsInterval = statsInterval;
+		startMetrics(metrics);
+	}
+	
+	private void startMetrics(TransferMetrics metrics) {
+		if (isJmxEnabled) {
+			metrics.register();
+		}
+		if (statsInterval > 0) {
+			metrics.startReporting(statsInterval);
+		}
+	}
+	
+	/**
+	 * Metrics of the session of the stream, or the total if the packet has no stream.
+	 */
+	private TransferMetrics metricsOf(Stream stream) {
+		return stream != null ? stream.session.metrics : metrics;
 	}
 	
 	public void waitForPacket() {
-		while (true) {
-			pkt.setLength(SIZE_DATA_PACKET); 
+		while (!isFinished || !streams.isEmpty()) {
+			packetBuffer.clear();
+			SocketAddress source;
 			
 			try {
-				sk.receive(pkt);
+				source = channel.receive(packetBuffer);
+				if (source == null) {
+					// Only block for a short while if there is a delayed ACK to be sent or idle streams to be checked
+					selector.select(!delayedAckStreams.isEmpty() ? DELAYED_ACK_TIMEOUT
+							: !streams.isEmpty() ? IDLE_CHECK_INTERVAL : 0);
+					selector.selectedKeys().clear();
+					source = channel.receive(packetBuffer);
+				}
 			} catch (IOException e) {
-				System.out.println("Unable to receive packets from DatagramSocket!");
+				System.out.println("Unable to receive packets from DatagramChannel!");
 				break;
 			}
 			
-			sourceSocketAddress = pkt.getSocketAddress();
+			long now = System.nanoTime();
+			if (now - lastIdleCheckTime >= IDLE_CHECK_INTERVAL * 1000000L) {
+				removeIdleStreams(now);
+				lastIdleCheckTime = now;
+			}
+			if (now - lastJournalTime >= JOURNAL_INTERVAL * 1000000L) {
+				saveJournals();
+				lastJournalTime = now;
+			}
+			metrics.setActiveStreams(streams.size());
+			sendDelayedAcks(now);
+			if (source == null) {
+				continue;
+			}
 			
-			if ((pkt.getLength() != SIZE_METADATA_PACKET) && (pkt.getLength() != SIZE_DATA_PACKET)) {
+			int length = packetBuffer.position();
+			if (length < SIZE_DATA_HEADER) {
 				log.fine("pkt too short");
 				continue;
 			}
 			
-			packetBuffer.rewind();
+			packetBuffer.flip();
 			long chksum = packetBuffer.getLong();
 			int seqNum = packetBuffer.getInt();
+			int sessionId = packetBuffer.getInt();
 			
-			crc.reset();
-			crc.update(incomingPacket, 8, pkt.getLength()-8);
-			
-			if (crc.getValue() != chksum) {
+			Stream stream = streams.get(source);
+			if (stream == null && seqNum != 0) {
+				// Early data that overtook its meta-data packet, or a stream that is gone. Its checksum type is not known
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Pkt " + seqNum + " of an unknown stream from " + source);
+				}
+				metrics.onUnexpectedPacket();
+				continue;
+			}
+			Checksum checksum = seqNum == 0 ? crc : stream.checksum;
+			if (!isChecksumValid(packetBuffer, chksum, checksum)) {
 				log.fine("Pkt corrupt");
+				metricsOf(stream).onCorruptPacket();
+				continue;
+			}
+			metricsOf(stream).onPacketReceived();
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Pkt " + seqNum + " of session " + sessionId + " from " + source);
+			}
+			
+			// The packet contains metadata
+			if (seqNum == 0) {
+				if (length == SIZE_SIGNATURE_REQUEST) {
+					sendSignatureChunk(stream, sessionId, packetBuffer.getInt());
+					continue;
+				}
+				if (length == SIZE_FIN_PACKET) {
+					getFin(stream, source, sessionId);
+					continue;
+				}
+				if (length != SIZE_METADATA_PACKET) {
+					continue;
+				}
+				getMetaData(stream, source, sessionId, now);
+				// A resumed stream may have nothing left to receive
+				stream = streams.get(source);
+				if (stream == null || !stream.isComplete()) {
+					continue;
+				}
 			} else {
-				log.fine("Pkt " + seqNum);
-				// The packet contains metadata
-				if (seqNum == 0) {
-					getMetaData();
+				if (stream == null || stream.session.sessionId != sessionId || (seqNum < 0 && stream.erasureCode == null)) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Pkt " + seqNum + " is unexpected");
+					}
+					continue;
+				}
+				// Anything longer than the negotiated size would overlap the next packet
+				int attachedDataSize = packetBuffer.getInt(packetBuffer.position());
+				boolean isZeroPacket = attachedDataSize < 0;
+				if (length > stream.dataPacketSize || attachedDataSize > length - SIZE_DATA_HEADER
+						|| (isZeroPacket && (seqNum < 0 || -attachedDataSize > stream.dataSize || stream.codec != null || stream.session.isDelta()))) {
+					log.fine("Pkt " + seqNum + " does not match its attached data size");
+					continue;
+				}
+				stream.lastPacketTime = now;
+				if (stream.isComplete()) {
+					// The ACKs for the end of the range might be lost
+					stream.session.metrics.onDuplicateReceived();
+					sendAck(stream, -1);
+					continue;
+				}
+				
+				packetBuffer.getInt();
+				if (isZeroPacket) {
+					zeroPacket.clear();
+					zeroPacket.limit(-attachedDataSize);
+					getData(stream, seqNum, zeroPacket);
 				} else {
-					getData(seqNum);
-					if (accumulatedDataSize >= destFileSize) {
-						System.out.println("Finish transmitting the file: " + accumulatedDataSize);
-						try {
-							bos.close();
-							for (int i = 0; i < 5; i++) {
-								sendAck(-1);
-							}
-						} catch (IOException e) {
-							System.out.println("Failed to close BufferedOutputStream");
-						}
-						break;
+					packetBuffer.limit(packetBuffer.position() + attachedDataSize);
+					if (seqNum < 0) {
+						getParity(stream, seqNum, packetBuffer);
+					} else {
+						getData(stream, seqNum, packetBuffer);
 					}
 				}
-			}	
+				if (stream.isComplete()) {
+					log.fine("Finish receiving the range from " + source + ": " + stream.accumulatedDataSize);
+					// Sent again for every retransmission until the FIN
+					sendAck(stream, -1);
+				}
+			}
+			Session session = stream.session;
+			if (session.isComplete() && session.fileChannel.isOpen()) {
+				finishSession(session);
+				// Linger until the streams have their ACK -1
+				isFinished = !isDaemon;
+			}
 		}
 	}
 	
-	public void getMetaData() {
+	public void getMetaData(Stream stream, SocketAddress source, int sessionId, long now) {
 		//return ack despite received the packet already. 
-		if (packetReceived[0]) {
-			sendAck(0);
+		if (stream != null && stream.session.sessionId == sessionId) {
+			stream.lastPacketTime = now;
+			sendAck(stream, ACK_METADATA);
 			return;
 		}
+		if (stream != null) {
+			// The sender socket has been reused for a new session
+			removeStream(stream);
+		}
 		
 		byte[] byteArrayDestFilePath = new byte[SIZE_DEST_FPATH];	
 		packetBuffer.get(byteArrayDestFilePath, 0, byteArrayDestFilePath.length);
-		destFilePath = new String(byteArrayDestFilePath);
-		destFilePath = destFilePath.trim();
-		destFileSize = packetBuffer.getLong();
-		log.fine("=============Receiving Meta-Data=============");
-		log.fine("Filename: " + destFilePath + " Size: " + destFileSize);
+		String filePath = new String(byteArrayDestFilePath).trim();
+		long fileSize = packetBuffer.getLong();
 		
+		stream = new Stream();
+		stream.address = source;
+		stream.transferMode = packetBuffer.get();
+		stream.windowSize = packetBuffer.getInt();
+		int proposedPacketSize = packetBuffer.getInt();
+		stream.rangeOffset = packetBuffer.getLong();
+		stream.rangeSize = packetBuffer.getLong();
+		long fileVersion = packetBuffer.getLong();
+		int fecDataShards = packetBuffer.get() & 0xff;
+		int fecParityShards = packetBuffer.get() & 0xff;
+		byte codecId = packetBuffer.get();
+		stream.blockSize = packetBuffer.getInt();
+		int deltaBlockSize = packetBuffer.getInt();
+		byte checksumType = packetBuffer.get();
+		byte digestType = packetBuffer.get();
+		boolean isEarlyData = packetBuffer.get() != 0;
+		if (isEarlyData && proposedPacketSize >= SIZE_METADATA_PACKET && proposedPacketSize <= SIZE_DATA_PACKET) {
+			// The first packets are already on their way
+			stream.dataPacketSize = proposedPacketSize;
+		} else {
+			stream.dataPacketSize = Math.max(SIZE_METADATA_PACKET, Math.min(proposedPacketSize, maxDataPacketSize));
+		}
+		stream.dataSize = stream.dataPacketSize - SIZE_DATA_HEADER;
 		try {
-			bos = new BufferedOutputStream(new FileOutputStream(destFilePath));
-			packetReceived[0] = true;
-			sendAck(0);	
-		} catch (FileNotFoundException e) {
-			System.out.println("Cannot write at the destinated filepath!");
+			stream.checksum = Checksums.createChecksum(checksumType);
+			stream.digest = Checksums.createDigest(digestType);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		if (stream.windowSize < 1 || stream.windowSize > TransferOptions.MAX_WINDOW_SIZE) {
+			System.out.println("Invalid window size: " + stream.windowSize);
+			return;
+		}
+		if (deltaBlockSize < 0 || deltaBlockSize > TransferOptions.MAX_DELTA_BLOCK_SIZE) {
+			System.out.println("Invalid delta block size: " + deltaBlockSize);
+			return;
+		}
+		try {
+			stream.codec = BlockCodec.create(codecId);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		if (stream.codec != null) {
+			if (stream.blockSize < 1 || stream.blockSize > TransferOptions.MAX_COMPRESSION_BLOCK_SIZE) {
+				System.out.println("Invalid compression block size: " + stream.blockSize);
+				return;
+			}
+			stream.blocks = new HashMap<Long, Block>();
+			stream.rawBlock = new byte[stream.blockSize];
+		}
+		// Go-Back-N drops the out-of-order packets needed to rebuild a lost one, and
+		// the packets of compressed blocks cannot be read back from the file
+		if (fecDataShards > 0 && stream.transferMode == MODE_SELECTIVE_REPEAT && stream.codec == null) {
+			try {
+				stream.erasureCode = new ErasureCode(fecDataShards, fecParityShards);
+				stream.parityGroups = new HashMap<Integer, ByteBuffer[]>();
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		log.fine("=============Receiving Meta-Data=============");
+		log.fine("Session: " + sessionId + " from " + source);
+		log.fine("Filename: " + filePath + " Size: " + fileSize + " Range: " + stream.rangeOffset + "+" + stream.rangeSize);
+		log.fine("Mode: " + (stream.transferMode == MODE_GO_BACK_N ? "Go-Back-N" : "Selective Repeat") + " Window: " + stream.windowSize);
+		log.fine("Data packet size: " + stream.dataPacketSize + " (proposed " + proposedPacketSize + ")");
+		log.fine("FEC: " + fecDataShards + ":" + fecParityShards + " Codec: " + codecId + " Block size: " + stream.blockSize);
+		log.fine("Delta block size: " + deltaBlockSize + " Checksum: " + checksumType + " Digest: " + digestType);
+		long packetCount = (stream.rangeSize + stream.dataSize - 1) / stream.dataSize;
+		if (packetCount > MAX_SEQNUM || (stream.erasureCode != null
+				&& (packetCount + fecDataShards - 1) / fecDataShards * fecParityShards > MAX_SEQNUM)) {
+			System.out.println("Range of " + stream.rangeSize + " bytes of " + filePath + " does not fit in the sequence numbers");
+			return;
+		}
+		
+		Session session = sessions.get(sessionId);
+		if (session == null) {
+			// A restarted sender takes over the file from its earlier session
+			for (Session oldSession : sessions.values()) {
+				if (oldSession.destFilePath.equals(filePath)) {
+					removeSession(oldSession);
+					break;
+				}
+			}
+			session = new Session();
+			session.sessionId = sessionId;
+			session.destFilePath = filePath;
+			session.destFileSize = fileSize;
+			session.journal = new ReceiveJournal(filePath, fileSize, fileVersion);
+			try {
+				long basisSize = deltaBlockSize > 0 && Files.isRegularFile(Paths.get(filePath)) ? Files.size(Paths.get(filePath)) : 0;
+				if (basisSize >= deltaBlockSize && basisSize > 0) {
+					session.basisChannel = FileChannel.open(Paths.get(filePath));
+					session.basisSize = basisSize;
+					FileChannel basisChannel = session.basisChannel;
+					int signatureBlockSize = deltaBlockSize;
+					session.signature = getSignatureExecutor().submit(() -> new DeltaSignature().compute(basisChannel, signatureBlockSize));
+					filePath += DELTA_SUFFIX;
+					System.out.println("Delta sync against " + session.destFilePath + " " + basisSize);
+				}
+				// The journal only describes the file it was written next to, which has to be there at its full size
+				Path destPath = Paths.get(filePath);
+				boolean isResumed = !session.isDelta() && Files.isRegularFile(destPath) && Files.size(destPath) == fileSize
+						&& session.journal.load();
+				if (!isResumed && !session.isDelta()) {
+					session.journal.delete();
+				}
+				if (isResumed) {
+					session.accumulatedDataSize = session.journal.getPresentSize();
+					System.out.println("Resume receiving the file: " + filePath + " " + session.accumulatedDataSize);
+				}
+				RandomAccessFile destFile = new RandomAccessFile(filePath, "rw");
+				if (!isResumed) {
+					// Anything left of an older file would show through the zero packets, which are not written
+					destFile.setLength(0);
+				}
+				// Preallocate the destination file so that the packets can be written in any order
+				destFile.setLength(fileSize);
+				session.fileChannel = destFile.getChannel();
+			} catch (IOException e) {
+				System.out.println("Cannot write at the destinated filepath!");
+				return;
+			}
+			session.metrics = new TransferMetrics("FileReceiver", metrics.getName() + "/" + sessionId, metrics);
+			startMetrics(session.metrics);
+			sessions.put(sessionId, session);
+		} else if (!filePath.equals(session.destFilePath) || fileSize != session.destFileSize) {
+			System.out.println("Session " + sessionId + " is already receiving " + session.destFilePath + ", ignoring " + filePath);
+			return;
+		}
+		
+		if (session.isDelta()) {
+			// Instructions carry their own positions, and there is nothing to rebuild or decompress
+			stream.codec = null;
+			stream.erasureCode = null;
+		} else {
+			// Skip what is already on disk at the start of the range, anything further in is received again
+			// The sender of early data has numbered its packets from the start of the range
+			stream.resumedSize = isEarlyData ? 0 : session.journal.getPresentPrefix(stream.rangeOffset, stream.rangeSize);
+			if (stream.digest != null && stream.resumedSize > 0) {
+				// The digest covers the whole range, the prefix on disk is read back in place of its packets
+				try {
+					diskWriter.flush(session.fileChannel, stream.rangeOffset, stream.resumedSize);
+					digestFromFile(stream, session.fileChannel, stream.rangeOffset, stream.resumedSize);
+				} catch (IOException e) {
+					System.out.println("Unable to read the resumed part of " + session.destFilePath + ", receiving it again");
+					stream.digest.reset();
+					stream.resumedSize = 0;
+				}
+			}
+			stream.rangeOffset += stream.resumedSize;
+			stream.rangeSize -= stream.resumedSize;
+			session.accumulatedDataSize -= session.journal.getPresentSize(stream.rangeOffset, stream.rangeOffset + stream.rangeSize);
+			if (stream.resumedSize > 0) {
+				log.fine("Resume the range from " + stream.rangeOffset + ", skipping " + stream.resumedSize);
+			}
+		}
+		
+		if (stream.codec != null) {
+			stream.blocksWritten = new ReceivedSet(0, stream.windowSize);
+		}
+		stream.session = session;
+		session.streamCount += 1;
+		session.metrics.setActiveStreams(session.streamCount);
+		stream.packetReceived = new ReceivedSet(1, stream.windowSize);
+		if (stream.digest != null && stream.transferMode == MODE_SELECTIVE_REPEAT) {
+			// The buffers are only allocated once a packet arrives out of order
+			stream.undigestedData = new ByteBuffer[stream.windowSize];
+			if (session.isDelta()) {
+				stream.undigestedCopyOffsets = new long[stream.windowSize];
+				stream.undigestedCopySizes = new int[stream.windowSize];
+			}
+		}
+		stream.lastPacketTime = now;
+		streams.put(source, stream);
+		sendAck(stream, ACK_METADATA);
+	}
+	
+	/**
+	 * Takes in the data of a packet, from the position to the limit of data.
+	 */
+	public void getData(Stream stream, int seqNum, ByteBuffer data) {
+		if (stream.transferMode == MODE_GO_BACK_N) {
+			getDataInOrder(stream, seqNum, data);
+		} else {
+			getDataSelective(stream, seqNum, data);
+			if (stream.erasureCode != null && !stream.parityGroups.isEmpty()) {
+				recoverGroup(stream, (seqNum - 1) / stream.erasureCode.getDataShards());
+			}
+		}
+	}
+	
+	/**
+	 * Go-Back-N: only the expected packet is accepted, everything else is
+	 * answered with a cumulative ACK of the last in-order packet.
+	 */
+	private void getDataInOrder(Stream stream, int seqNum, ByteBuffer data) {
+		if (seqNum == stream.expectedSeqNum) {
+			int attachedDataSize = data.remaining();
+			if (!writeData(stream, seqNum, data)) {
+				return;
+			}
+			stream.packetReceived.add(seqNum);
+			stream.expectedSeqNum += 1;
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Pkt " + seqNum + " received with size: " + attachedDataSize + " -- " + stream.accumulatedDataSize);
+			}
+			delayAck(stream);
+		} else {
+			// Out-of-order or duplicate, tell the sender where the gap is at once
+			if (seqNum < stream.expectedSeqNum) {
+				stream.session.metrics.onDuplicateReceived();
+			}
+			sendAck(stream, stream.expectedSeqNum - 1);
+		}
+	}
+	
+	/**
+	 * Selective Repeat: packets within the window are written to their
+	 * position in the file at once, the cumulative ACK only moves forward
+	 * once the gap before them is filled.
+	 */
+	private void getDataSelective(Stream stream, int seqNum, ByteBuffer data) {
+		if (stream.packetReceived.contains(seqNum)) {
+			// Duplicate, the previous ACK might be lost
+			stream.session.metrics.onDuplicateReceived();
+			sendAck(stream, stream.expectedSeqNum - 1);
+			return;
+		}
+		// Compared as a difference, expectedSeqNum + windowSize may not fit in an int
+		if (seqNum - stream.expectedSeqNum >= stream.windowSize) {
+			// Outside of the receiver window, let the sender retransmit later
+			return;
+		}
+		
+		int attachedDataSize = data.remaining();
+		if (!writeData(stream, seqNum, data)) {
+			return;
+		}
+		stream.packetReceived.add(seqNum);
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Pkt " + seqNum + " received with size: " + attachedDataSize + " -- " + stream.accumulatedDataSize);
+		}
+		
+		// The set has already moved past the contiguous packets at the start of the window
+		boolean isInOrder = seqNum == stream.expectedSeqNum && stream.packetReceived.getFirstMissing() == seqNum + 1;
+		stream.expectedSeqNum = (int) stream.packetReceived.getFirstMissing();
+		if (stream.undigestedData != null && seqNum + 1 < stream.expectedSeqNum) {
+			// The gap before the packets received out of order has been filled
+			try {
+				for (int i = seqNum + 1; i < stream.expectedSeqNum; i++) {
+					digestSlot(stream, i);
+				}
+			} catch (IOException e) {
+				System.out.println("Unable to read the basis file!");
+			}
+		}
+		
+		if (isInOrder) {
+			delayAck(stream);
+		} else {
+			// Either a gap has been opened or filled, the sender needs to know at once
+			sendAck(stream, stream.expectedSeqNum - 1);
+		}
+	}
+	
+	/**
+	 * Cover in-order packets with a single ACK, see ACK_FREQUENCY.
+	 */
+	private void delayAck(Stream stream) {
+		if (stream.delayedAckCount == 0) {
+			stream.delayedAckDeadline = stream.lastPacketTime + DELAYED_ACK_TIMEOUT * 1000000L;
+			delayedAckStreams.add(stream);
+		}
+		stream.delayedAckCount += 1;
+		// A small window would stall while the ACK is being held back
+		if (stream.delayedAckCount >= ACK_FREQUENCY || stream.windowSize <= ACK_FREQUENCY) {
+			sendAck(stream, stream.expectedSeqNum - 1);
+		}
+	}
+	
+	/**
+	 * Sends the ACKs held back past their deadline. The streams are in the order their ACKs
+	 * have been held back, and so are their deadlines.
+	 */
+	private void sendDelayedAcks(long now) {
+		while (!delayedAckStreams.isEmpty() && now - delayedAckStreams.get(0).delayedAckDeadline >= 0) {
+			Stream stream = delayedAckStreams.remove(0);
+			stream.delayedAckCount = 0;
+			sendAck(stream, stream.expectedSeqNum - 1);
+		}
+	}
+	
+	/**
+	 * Keeps a parity packet until its group can be rebuilt, unless nothing of the group is missing.
+	 */
+	private void getParity(Stream stream, int seqNum, ByteBuffer data) {
+		int dataShards = stream.erasureCode.getDataShards();
+		int parityShards = stream.erasureCode.getParityShards();
+		int index = -(seqNum + 1);
+		int group = index / parityShards;
+		long lastSeqNumOfGroup = Math.min((long) (group + 1) * dataShards, stream.getLastSeqNum());
+		if (lastSeqNumOfGroup < stream.expectedSeqNum || data.remaining() > stream.dataSize) {
+			return;
+		}
+		// Groups below the cumulative ACK are complete
+		stream.parityGroups.keySet().removeIf(g -> (long) (g + 1) * dataShards < stream.expectedSeqNum);
+		
+		ByteBuffer[] parity = stream.parityGroups.get(group);
+		if (parity == null) {
+			parity = new ByteBuffer[parityShards];
+			stream.parityGroups.put(group, parity);
 		}
+		if (parity[index % parityShards] != null) {
+			return;
+		}
+		// Padded with zeros up to the size of a full packet
+		ByteBuffer shard = ByteBuffer.allocate(stream.dataSize);
+		shard.put(data);
+		shard.clear();
+		parity[index % parityShards] = shard;
+		recoverGroup(stream, group);
 	}
 	
-	public void getData(int seqNum) {
-		if (packetReceived[seqNum]) {
-			sendAck(seqNum);
+	/**
+	 * Rebuilds the missing packets of a group once there is enough parity,
+	 * reading the packets that have been received back from the file.
+	 */
+	private void recoverGroup(Stream stream, int group) {
+		ByteBuffer[] parity = stream.parityGroups.get(group);
+		if (parity == null) {
+			return;
+		}
+		int firstSeqNum = group * stream.erasureCode.getDataShards() + 1;
+		int groupSize = (int) Math.min(stream.erasureCode.getDataShards(), stream.getLastSeqNum() - firstSeqNum + 1);
+		int missingCount = 0;
+		for (int i = 0; i < groupSize; i++) {
+			if (!stream.packetReceived.contains(firstSeqNum + i)) {
+				missingCount += 1;
+			}
+		}
+		int parityCount = 0;
+		for (ByteBuffer shard : parity) {
+			if (shard != null) {
+				parityCount += 1;
+			}
+		}
+		if (missingCount == 0) {
+			stream.parityGroups.remove(group);
+			return;
+		}
+		if (missingCount > parityCount) {
 			return;
 		}
 		
-		int attachedDataSize = packetBuffer.getInt();
+		ByteBuffer[] data = new ByteBuffer[groupSize];
+		long groupPosition = stream.rangeOffset + (long) (firstSeqNum - 1) * stream.dataSize;
+		try {
+			// Other packets and files may still be on their way to the disk
+			diskWriter.flush(stream.session.fileChannel, groupPosition, (long) groupSize * stream.dataSize);
+			for (int i = 0; i < groupSize; i++) {
+				int seqNum = firstSeqNum + i;
+				if (!stream.packetReceived.contains(seqNum)) {
+					continue;
+				}
+				data[i] = ByteBuffer.allocate(stream.dataSize);
+				data[i].limit(stream.getPacketSize(seqNum));
+				long position = groupPosition + (long) i * stream.dataSize;
+				while (data[i].hasRemaining()) {
+					if (stream.session.fileChannel.read(data[i], position + data[i].position()) == -1) {
+						break;
+					}
+				}
+				data[i].clear();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to read data!");
+			return;
+		}
+		stream.erasureCode.decode(data, parity);
+		stream.parityGroups.remove(group);
 		
-		byte[] attachedData = new byte[attachedDataSize];
-		packetBuffer.get(attachedData, 0, attachedDataSize);
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Rebuild " + missingCount + " packets of group " + group);
+		}
+		for (int i = 0; i < groupSize; i++) {
+			int seqNum = firstSeqNum + i;
+			if (!stream.packetReceived.contains(seqNum)) {
+				data[i].limit(stream.getPacketSize(seqNum));
+				getDataSelective(stream, seqNum, data[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the data of a packet at its position in the file.
+	 */
+	private boolean writeData(Stream stream, int seqNum, ByteBuffer data) {
+		if (stream.session.isDelta()) {
+			return applyDelta(stream, seqNum, data);
+		}
+		if (stream.codec != null) {
+			return writeFragment(stream, seqNum, data);
+		}
+		long position = stream.rangeOffset + (long) (seqNum - 1) * stream.dataSize;
+		int attachedDataSize = data.remaining();
+		int dataPosition = data.position();
 		try {
-			bos.write(attachedData);
-			bos.flush();
-			accumulatedDataSize += attachedDataSize;
-			packetReceived[seqNum] = true;
-			sendAck(seqNum);
+			// The file is already zero there
+			if (data != zeroPacket) {
+				diskWriter.write(stream.session.fileChannel, position, data);
+				data.position(dataPosition);
+			}
+			updateDigest(stream, seqNum, data);
+			stream.accumulatedDataSize += attachedDataSize;
+			stream.session.metrics.addBytesDelivered(attachedDataSize);
+			stream.session.accumulatedDataSize += attachedDataSize;
+			stream.session.isJournalDirty = true;
+			return true;
 		} catch (IOException e) {
 			System.out.println("Unable to write data!");
+			return false;
 		}
+	}
+	
+	/**
+	 * Collects a fragment of a compressed block, and writes the block once all of its fragments have arrived.
+	 */
+	private boolean writeFragment(Stream stream, int seqNum, ByteBuffer data) {
+		if (data.remaining() < SIZE_BLOCK_HEADER) {
+			return false;
+		}
+		long blockOffset = data.getLong();
+		int payloadSize = data.getInt();
+		int fragmentOffset = data.getInt();
+		int length = data.remaining();
+		long rangeEnd = stream.rangeOffset + stream.rangeSize;
+		if (blockOffset < stream.rangeOffset || blockOffset >= rangeEnd || (blockOffset - stream.rangeOffset) % stream.blockSize != 0
+				|| payloadSize > stream.blockSize || fragmentOffset < 0 || fragmentOffset + length > payloadSize) {
+			log.fine("Invalid block header at " + blockOffset);
+			return false;
+		}
+		
+		Block block = stream.blocks.get(blockOffset);
+		if (block == null) {
+			block = new Block(payloadSize);
+			stream.blocks.put(blockOffset, block);
+		}
+		data.get(block.payload, fragmentOffset, length);
+		block.receivedSize += length;
+		if (block.receivedSize < payloadSize) {
+			return true;
+		}
+		stream.blocks.remove(blockOffset);
 		
-		log.fine("Pkt " + seqNum + " received with size: " + attachedDataSize + " -- " + accumulatedDataSize);
+		int rawSize = (int) Math.min(stream.blockSize, rangeEnd - blockOffset);
+		ByteBuffer raw;
+		if (payloadSize == rawSize) {
+			raw = ByteBuffer.wrap(block.payload);
+		} else if (stream.codec.decompress(block.payload, payloadSize, stream.rawBlock) == rawSize) {
+			raw = ByteBuffer.wrap(stream.rawBlock, 0, rawSize);
+		} else {
+			System.out.println("Unable to decompress the block at " + blockOffset);
+			return true;
+		}
+		try {
+			diskWriter.write(stream.session.fileChannel, blockOffset, raw);
+			raw.rewind();
+			// Blocks are sent one after the other, so the packets completing them are in the order of the blocks
+			updateDigest(stream, seqNum, raw);
+		} catch (IOException e) {
+			System.out.println("Unable to write data!");
+			return true;
+		}
+		stream.blocksWritten.add((blockOffset - stream.rangeOffset) / stream.blockSize);
+		stream.accumulatedDataSize += rawSize;
+		stream.session.metrics.addBytesDelivered(rawSize);
+		stream.session.accumulatedDataSize += rawSize;
+		stream.session.isJournalDirty = true;
+		return true;
+	}
+	
+	/**
+	 * Applies a delta instruction, either writing a literal or copying a run of blocks out of the basis file.
+	 */
+	private boolean applyDelta(Stream stream, int seqNum, ByteBuffer data) {
+		Session session = stream.session;
+		if (data.remaining() < DeltaEncoder.SIZE_LITERAL_HEADER) {
+			return false;
+		}
+		byte type = data.get();
+		long position = data.getLong();
+		long rangeEnd = stream.rangeOffset + stream.rangeSize;
+		try {
+			if (type == DeltaEncoder.DELTA_LITERAL) {
+				int size = data.remaining();
+				int dataPosition = data.position();
+				if (position < stream.rangeOffset || position + size > rangeEnd) {
+					log.fine("Invalid literal at " + position);
+					return false;
+				}
+				diskWriter.write(session.fileChannel, position, data);
+				data.position(dataPosition);
+				updateDigest(stream, seqNum, data);
+				stream.accumulatedDataSize += size;
+				stream.session.metrics.addBytesDelivered(size);
+				session.accumulatedDataSize += size;
+				return true;
+			}
+			if (type != DeltaEncoder.DELTA_COPY || data.remaining() != DeltaEncoder.SIZE_COPY - DeltaEncoder.SIZE_LITERAL_HEADER) {
+				log.fine("Invalid delta instruction at " + position);
+				return false;
+			}
+			long basisOffset = data.getLong();
+			int size = data.getInt();
+			if (position < stream.rangeOffset || size < 0 || position + size > rangeEnd
+					|| basisOffset < 0 || basisOffset + size > session.basisSize) {
+				log.fine("Invalid copy to " + position + " from " + basisOffset);
+				return false;
+			}
+			// Written by the writer thread, which is the only one using the position of the basis channel
+			diskWriter.copy(session.basisChannel, basisOffset, session.fileChannel, position, size);
+			updateCopyDigest(stream, seqNum, basisOffset, size);
+			stream.accumulatedDataSize += size;
+			stream.session.metrics.addBytesDelivered(size);
+			session.accumulatedDataSize += size;
+			return true;
+		} catch (IOException e) {
+			System.out.println("Unable to write data!");
+			return false;
+		}
+	}
+	
+	/**
+	 * Feeds the data of the packet into the digest if the packets before it have all arrived,
+	 * otherwise keeps a copy in its slot until they have. The position of data is left at its limit.
+	 */
+	private void updateDigest(Stream stream, int seqNum, ByteBuffer data) {
+		if (stream.digest == null) {
+			return;
+		}
+		if (seqNum == stream.expectedSeqNum) {
+			stream.digest.update(data);
+			return;
+		}
+		int slot = seqNum % stream.windowSize;
+		ByteBuffer copy = stream.undigestedData[slot];
+		if (copy == null || copy.capacity() < data.remaining()) {
+			// Packets of the same slot are as large, only the blocks of compression may take more
+			copy = ByteBuffer.allocate(Math.max(stream.dataSize, data.remaining()));
+			stream.undigestedData[slot] = copy;
+		}
+		copy.clear();
+		copy.put(data);
+		copy.flip();
+	}
+	
+	/**
+	 * Feeds the size bytes copied from basisOffset of the basis file into the digest if the packets
+	 * before the copy instruction have all arrived, otherwise keeps them for later.
+	 */
+	private void updateCopyDigest(Stream stream, int seqNum, long basisOffset, int size) throws IOException {
+		if (stream.digest == null) {
+			return;
+		}
+		if (seqNum == stream.expectedSeqNum) {
+			digestFromFile(stream, stream.session.basisChannel, basisOffset, size);
+			return;
+		}
+		int slot = seqNum % stream.windowSize;
+		stream.undigestedCopyOffsets[slot] = basisOffset;
+		stream.undigestedCopySizes[slot] = size;
+	}
+	
+	/**
+	 * Feeds what has been kept in the slot of the packet into the digest, once the packets before it have arrived.
+	 */
+	private void digestSlot(Stream stream, int seqNum) throws IOException {
+		int slot = seqNum % stream.windowSize;
+		ByteBuffer copy = stream.undigestedData[slot];
+		if (copy != null && copy.hasRemaining()) {
+			stream.digest.update(copy);
+		}
+		if (stream.undigestedCopySizes != null && stream.undigestedCopySizes[slot] > 0) {
+			digestFromFile(stream, stream.session.basisChannel, stream.undigestedCopyOffsets[slot], stream.undigestedCopySizes[slot]);
+			stream.undigestedCopySizes[slot] = 0;
+		}
+	}
+	
+	/**
+	 * Reads size bytes at position in the file into the digest of the stream, e.g. those of a copy
+	 * instruction from the basis file, which is not written to, or those of a resumed prefix.
+	 */
+	private void digestFromFile(Stream stream, FileChannel file, long position, long size) throws IOException {
+		long end = position + size;
+		while (position < end) {
+			digestBuffer.clear();
+			digestBuffer.limit((int) Math.min(digestBuffer.capacity(), end - position));
+			int count = file.read(digestBuffer, position);
+			if (count <= 0) {
+				throw new IOException("Unable to read " + stream.session.destFilePath + " at " + position);
+			}
+			digestBuffer.flip();
+			stream.digest.update(digestBuffer);
+			position += count;
+		}
 	}
 	
-	public void sendAck(int currentSeqNum) {
-		byte[] ackByteArray = new byte[SIZE_ACK_PACKET];
-		ByteBuffer ackBuffer = ByteBuffer.wrap(ackByteArray);
+	/**
+	 * Answers a request for a chunk of the signature of the basis file.
+	 * Chunks are as large as the data packets of the stream.
+	 */
+	private void sendSignatureChunk(Stream stream, int sessionId, int chunk) {
+		if (stream == null || stream.session.sessionId != sessionId || stream.session.signature == null) {
+			return;
+		}
+		if (!stream.session.signature.isDone()) {
+			// Still being computed, the sender asks again
+			sendAck(stream, ACK_METADATA);
+			return;
+		}
+		byte[] signature;
+		try {
+			signature = stream.session.signature.get();
+		} catch (ExecutionException | InterruptedException e) {
+			System.out.println("Unable to compute the signature of " + stream.session.destFilePath + ": " + e.getCause());
+			removeSession(stream.session);
+			return;
+		}
+		int chunkSize = stream.dataPacketSize - SIZE_SIGNATURE_HEADER;
+		long chunkOffset = (long) chunk * chunkSize;
+		if (chunk < 0 || chunkOffset >= signature.length) {
+			return;
+		}
+		int length = (int) Math.min(chunkSize, signature.length - chunkOffset);
 		ackBuffer.clear();
 		// reserve space for checksum
 		ackBuffer.putLong(0);
-		ackBuffer.putInt(currentSeqNum);
+		ackBuffer.putInt(-(4 + chunk));
+		ackBuffer.putInt(length);
+		ackBuffer.put(signature, (int) chunkOffset, length);
+		while (ackBuffer.position() < SIZE_ACK_PACKET) {
+			ackBuffer.put((byte) 0);
+		}
+		putChecksum(ackBuffer, stream.checksum);
+		try {
+			while (channel.send(ackBuffer, stream.address) == 0) {
+				Thread.onSpinWait();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to send signature chunk " + chunk);
+		}
+	}
+	
+	/**
+	 * Worker threads computing the signatures of basis files, started with the first delta session.
+	 */
+	private ExecutorService getSignatureExecutor() {
+		if (signatureExecutor == null) {
+			signatureExecutor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "DeltaSignature");
+				// A signature is of no use once the receiver is done
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return signatureExecutor;
+	}
+	
+	/**
+	 * The sender has the ACK -1, so the stream can go without lingering. Unknown streams
+	 * get a FIN-ACK as well, the FIN-ACK of an earlier FIN may have been lost.
+	 */
+	private void getFin(Stream stream, SocketAddress source, int sessionId) {
+		long rangeOffset = packetBuffer.getLong();
+		if (stream != null && stream.session.sessionId == sessionId && stream.rangeOffset == rangeOffset && stream.isComplete()) {
+			log.fine("FIN from " + source);
+			removeStream(stream);
+		}
 		
-		crc.reset();
-		crc.update(ackByteArray, 8, ackByteArray.length-8);
-		long chksum = crc.getValue();
-		ackBuffer.rewind();
-		ackBuffer.putLong(chksum);
+		// Empty SACK bitmap
+		putAck(ackBuffer, ACK_FIN, null);
+		putChecksum(ackBuffer, crc);
+		try {
+			while (channel.send(ackBuffer, source) == 0) {
+				Thread.onSpinWait();
+			}
+			metricsOf(stream).onAckSent();
+		} catch (IOException e) {
+			System.out.println("Unable to send the FIN-ACK");
+		}
+	}
+	
+	private void finishSession(Session session) {
+		try {
+			diskWriter.flush();
+			if (isSyncedOnClose) {
+				session.fileChannel.force(false);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to write data!");
+		}
+		System.out.println("Finish transmitting the file: " + session.destFilePath + " " + session.accumulatedDataSize);
+		try {
+			session.fileChannel.close();
+		} catch (IOException e) {
+			System.out.println("Failed to close FileChannel");
+		}
+		if (session.isDelta()) {
+			try {
+				session.basisChannel.close();
+				// The basis is only replaced by the complete new file
+				Files.move(Paths.get(session.destFilePath + DELTA_SUFFIX), Paths.get(session.destFilePath),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.out.println("Unable to replace " + session.destFilePath);
+			}
+		}
+		try {
+			session.journal.delete();
+		} catch (IOException e) {
+			System.out.println("Unable to delete the journal of " + session.destFilePath);
+		}
+		// The streams stay until they have lingered for retransmissions
+		sessions.remove(session.sessionId);
+	}
+	
+	/**
+	 * Adds the bytes received in order by every stream to the journal of its
+	 * session, and saves the journals of the sessions that have received data.
+	 */
+	private void saveJournals() {
+		for (Stream stream : streams.values()) {
+			Session session = stream.session;
+			if (session.isJournalDirty && session.fileChannel.isOpen()) {
+				session.journal.add(stream.rangeOffset, stream.rangeOffset + stream.getReceivedPrefix());
+			}
+		}
+		for (Session session : sessions.values()) {
+			if (session.isJournalDirty && !session.isDelta()) {
+				saveJournal(session);
+			}
+		}
+	}
+	
+	/**
+	 * Saves the ranges in the journal so far from the writer thread, once their data has been written and forced to disk.
+	 */
+	private void saveJournal(Session session) {
+		long[] ranges = session.journal.getRanges();
+		FileChannel fileChannel = session.fileChannel;
+		ReceiveJournal journal = session.journal;
+		String destFilePath = session.destFilePath;
+		try {
+			// The journal must not claim data that could still be lost in a crash
+			diskWriter.barrier(() -> {
+				try {
+					fileChannel.force(false);
+					journal.save(ranges);
+				} catch (IOException e) {
+					System.out.println("Unable to save the journal of " + destFilePath);
+				}
+			});
+			session.isJournalDirty = false;
+		} catch (IOException e) {
+			System.out.println("Unable to write data!");
+		}
+	}
+	
+	/**
+	 * Removes the streams which have not sent anything for a while, finished
+	 * streams after STREAM_LINGER_TIMEOUT and unfinished ones after STREAM_TIMEOUT.
+	 */
+	private void removeIdleStreams(long now) {
+		Iterator<Stream> iterator = streams.values().iterator();
+		while (iterator.hasNext()) {
+			Stream stream = iterator.next();
+			long timeout = stream.isComplete() ? STREAM_LINGER_TIMEOUT : STREAM_TIMEOUT;
+			if (now - stream.lastPacketTime >= timeout * 1000000L) {
+				iterator.remove();
+				closeStream(stream);
+			}
+		}
+	}
+	
+	private void removeStream(Stream stream) {
+		streams.remove(stream.address);
+		closeStream(stream);
+	}
+	
+	private void removeSession(Session session) {
+		Iterator<Stream> iterator = streams.values().iterator();
+		while (iterator.hasNext()) {
+			Stream stream = iterator.next();
+			if (stream.session == session) {
+				iterator.remove();
+				closeStream(stream);
+			}
+		}
+	}
+	
+	private void closeStream(Stream stream) {
+		log.fine("Remove the stream from " + stream.address);
+		if (stream.delayedAckCount > 0) {
+			delayedAckStreams.remove(stream);
+		}
+		Session session = stream.session;
+		session.streamCount -= 1;
+		session.metrics.setActiveStreams(session.streamCount);
+		if (session.streamCount == 0) {
+			// The last stream has lingered, nothing is counted for the session any more
+			session.metrics.close();
+		}
+		if (!session.isComplete() && !session.isDelta()) {
+			session.journal.add(stream.rangeOffset, stream.rangeOffset + stream.getReceivedPrefix());
+		}
+		if (session.streamCount == 0 && !session.isComplete()) {
+			System.out.println("Give up receiving the file: " + session.destFilePath + " " + session.accumulatedDataSize);
+			if (!session.isDelta()) {
+				// Keep what has been received for a later transfer
+				saveJournal(session);
+			}
+			try {
+				diskWriter.flush();
+				session.fileChannel.close();
+				if (session.isDelta()) {
+					// The basis is left as it was
+					session.basisChannel.close();
+					Files.deleteIfExists(Paths.get(session.destFilePath + DELTA_SUFFIX));
+				}
+			} catch (IOException e) {
+				System.out.println("Failed to close FileChannel");
+			}
+			sessions.remove(session.sessionId);
+		}
+	}
+	
+	public void sendAck(Stream stream, int currentSeqNum) {
+		putAck(ackBuffer, currentSeqNum, stream.packetReceived);
+		if (currentSeqNum == ACK_METADATA) {
+			ackBuffer.putInt(SIZE_CHECKSUM + SIZE_SEQNUM, stream.dataPacketSize);
+			ackBuffer.putLong(SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_PACKET_SIZE, stream.resumedSize);
+			ackBuffer.putLong(SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_PACKET_SIZE + 8, stream.session.basisSize);
+		} else if (currentSeqNum == -1 && stream.digest != null) {
+			if (stream.digestValue == null) {
+				stream.digestValue = stream.digest.digest();
+			}
+			ackBuffer.put(SIZE_CHECKSUM + SIZE_SEQNUM, stream.digestValue);
+		}
 		
-		DatagramPacket ack = new DatagramPacket(ackByteArray, SIZE_ACK_PACKET, sourceSocketAddress);
+		putChecksum(ackBuffer, currentSeqNum == ACK_METADATA ? crc : stream.checksum);
 		try {
-			sk.send(ack);
+			// Nothing is sent while the socket send buffer is full
+			while (channel.send(ackBuffer, stream.address) == 0) {
+				Thread.onSpinWait();
+			}
+			stream.session.metrics.onAckSent();
+			if (stream.delayedAckCount > 0) {
+				stream.delayedAckCount = 0;
+				delayedAckStreams.remove(stream);
+			}
 		} catch (IOException e) {
 			System.out.println("Unable to send Ack " + currentSeqNum);
 		}
 	}
 	
+	/**
+	 * Puts an ACK of seqNum with the SACK bitmap of the packets received after it into ack, from its
+	 * start. The SACK bitmap is empty for a negative seqNum. Shared with TransferBenchmark.
+	 */
+	static void putAck(ByteBuffer ack, int seqNum, ReceivedSet received) {
+		ack.clear();
+		// reserve space for checksum
+		ack.putLong(0);
+		ack.putInt(seqNum);
+		for (int i = 0; i < SIZE_SACK_BITMAP; i++) {
+			int bits = 0;
+			for (int j = 0; j < 8; j++) {
+				long sackSeqNum = (long) seqNum + 1 + i * 8 + j;
+				if (seqNum >= 0 && received.contains(sackSeqNum)) {
+					bits |= 1 << j;
+				}
+			}
+			ack.put((byte) bits);
+		}
+	}
+	
+	/**
+	 * Flips the packet put into buffer and fills in its checksum, leaving it ready to be sent.
+	 */
+	static void putChecksum(ByteBuffer packet, Checksum checksum) {
+		checksum.reset();
+		packet.flip();
+		packet.position(SIZE_CHECKSUM);
+		checksum.update(packet);
+		packet.putLong(0, checksum.getValue());
+		packet.rewind();
+	}
+	
+	/**
+	 * Returns true if chksum is the checksum of the packet from its SIZE_CHECKSUM to its limit,
+	 * leaving its position as it was. Shared with TransferBenchmark.
+	 */
+	static boolean isChecksumValid(ByteBuffer packet, long chksum, Checksum checksum) {
+		int position = packet.position();
+		checksum.reset();
+		packet.position(SIZE_CHECKSUM);
+		checksum.update(packet);
+		packet.position(position);
+		return checksum.getValue() == chksum;
+	}
+	
+	/**
+	 * Releases the socket once waitForPacket has returned, and stops the metrics.
+	 */
+	public void close() {
+		for (Stream stream : streams.values()) {
+			stream.session.metrics.close();
+		}
+		metrics.close();
+		if (signatureExecutor != null) {
+			signatureExecutor.shutdownNow();
+		}
+		try {
+			diskWriter.close();
+		} catch (IOException e) {
+			System.out.println("Unable to write data!");
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Unable to close the DatagramChannel");
+		}
+	}
+	
 	public static void main(String[] args) {
-		if (args.length != 1) {
-			System.err.println("Usage: FileReceiver <incoming_port>");
+		if (args.length < 1 || args.length > 6) {
+			System.err.println(USAGE);
 			System.exit(-1);
 		}
 		
-		int port = Integer.parseInt(args[0]);
-		FileReceiver fr = new FileReceiver(port);
-		fr.waitForPacket();		
+		int port = 0;
+		int maxPacketSize = MAX_SIZE_DATA_PACKET;
+		boolean isDaemon = false;
+		long statsInterval = 0;
+		boolean isJmxEnabled = false;
+		String syncPolicy = "none";
+		try {
+			port = Integer.parseInt(args[0]);
+			for (int i = 1; i < args.length; i++) {
+				String arg = args[i].toLowerCase();
+				// A bare daemon or jmx stands for =true
+				if (arg.equals("daemon") || arg.equals("jmx")) {
+					arg += "=true";
+				}
+				if (arg.startsWith("daemon=")) {
+					isDaemon = TransferOptions.parseBoolean("daemon", arg.substring("daemon=".length()));
+				} else if (arg.startsWith("jmx=")) {
+					isJmxEnabled = TransferOptions.parseBoolean("jmx", arg.substring("jmx=".length()));
+				} else if (arg.startsWith("fsync=")) {
+					syncPolicy = arg.substring("fsync=".length());
+				} else if (arg.startsWith("stats=")) {
+					statsInterval = Long.parseLong(arg.substring("stats=".length()));
+					if (statsInterval < 0) {
+						throw new IllegalArgumentException("Stats interval must not be negative");
+					}
+				} else {
+					maxPacketSize = Integer.parseInt(arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			// Also an unknown option, which is not a number either
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+		if (maxPacketSize < SIZE_METADATA_PACKET || maxPacketSize > MAX_SIZE_DATA_PACKET) {
+			System.err.println("Packet size must be between " + SIZE_METADATA_PACKET + " and " + MAX_SIZE_DATA_PACKET);
+			System.exit(-1);
+		}
+		FileReceiver fr = new FileReceiver(port, maxPacketSize, isDaemon);
+		try {
+			fr.setSyncPolicy(syncPolicy);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+		fr.setMetricsReporting(isJmxEnabled, statsInterval);
+		fr.waitForPacket();
+		fr.close();
 	}
 	
 	// Obtained from skeleton code
@@ -1,33 +1,87 @@
 /**
- * Meta-data packet (total size: 1000 bytes)
+ * Meta-data packet
  * 8 bytes: Checksum (long)
  * 4 bytes: Sequence number (int)
+ * 4 bytes: Session ID (int) - shared by all the streams of a file
  * 255 bytes: Destination File Path (String) 
  * 8 bytes: File Size (long)
+ * 1 byte: Transfer mode (byte) - 0 for Go-Back-N, 1 for Selective Repeat
+ * 4 bytes: Window size (int)
+ * 4 bytes: Proposed data packet size (int)
+ * 8 bytes: Range offset (long) - first byte of the file sent by this stream
+ * 8 bytes: Range size (long)
+ * 8 bytes: Source file version (long) - last modified time
+ * 1 byte: FEC data packets per group (unsigned byte) - 0 without forward error correction
+ * 1 byte: FEC parity packets per group (unsigned byte)
+ * 1 byte: Compression codec (byte) - see BlockCodec
+ * 4 bytes: Compression block size (int)
+ * 4 bytes: Delta block size (int) - 0 without delta sync
+ * 1 byte: Checksum (byte) - see Checksums
+ * 1 byte: File digest (byte) - see Checksums
+ * 1 byte: Early data (byte) - 1 if the data packets follow without waiting for the ACK
  * 
- * Data packet (total size: 1000 bytes)
+ * Data packet (total size: negotiated data packet size, 1000 bytes by default)
  * 8 bytes: Checksum (long)
  * 4 bytes: Sequence number (int)
- * 4 bytes: attached data size (int)
- * 1500-8-4-4 bytes: data (byte[])
+ * 4 bytes: Session ID (int)
+ * 4 bytes: attached data size (int) - -n for n zero bytes, which are not sent
+ * 1500-8-4-4 bytes: data (byte[]) - a block header first with compression, a delta instruction with delta sync
+ * 
+ * Signature request (delta sync)
+ * 8 bytes: Checksum (long)
+ * 4 bytes: Sequence number (int) - 0
+ * 4 bytes: Session ID (int)
+ * 4 bytes: Chunk number (int)
+ * 
+ * Signature chunk (delta sync)
+ * 8 bytes: Checksum (long)
+ * 4 bytes: Sequence number (int) - -(4 + chunk number)
+ * 4 bytes: chunk size (int)
+ * chunk size bytes: chunk of the signature of the basis file (byte[])
+ * 
+ * Parity packet (Selective Repeat only)
+ * 8 bytes: Checksum (long)
+ * 4 bytes: Parity number (int) - parity j of group g is -(1 + g * m + j)
+ * 4 bytes: Session ID (int)
+ * 4 bytes: parity size (int)
+ * parity size bytes: parity (byte[])
+ * 
+ * FIN packet
+ * 8 bytes: Checksum (long)
+ * 4 bytes: Sequence number (int) - 0
+ * 4 bytes: Session ID (int)
+ * 8 bytes: Range offset (long)
  * 
  * ACK packet 
  * 8 bytes: Checksum (long)
- * 4 bytes: Sequence number (int)
+ * 4 bytes: Cumulative sequence number (int)
+ * 32 bytes: SACK bitmap (byte[]) - bit i is set if packet (cumulative + 1 + i) has been received
+ * 
+ * ACK -3 answers the meta-data packet with the accepted packet size (int), the bytes of the range already on disk (long)
+ * and the size of the delta basis file (long) in place of the SACK bitmap. ACK -1 completes a range and carries its
+ * digest, ACK -2 answers the FIN. The meta-data packet, the FIN and their ACKs use CRC32.
  */
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class FileSender {
 	//All the units are in BYTES
@@ -35,44 +89,282 @@ public class FileSender {
 	//http://stackoverflow.com/questions/6571435/limit-on-file-name-length-in-bash
 	//Maximum number of characters is 255. Each character in UTF-8 is 1 byte
 	public static final int SIZE_SEQNUM = 4;
+	public static final int SIZE_SESSION_ID = 4;
 	public static final int SIZE_DEST_FPATH = 255;
 	public static final int SIZE_FILESIZE = 8;
 	public static final int SIZE_ATTACHEDDATASIZE = 4;
-	public static final int SIZE_DATA_PACKET = 1000; // Limitation of UnreliNet
-	public static final int SIZE_METADATA_PACKET = SIZE_CHECKSUM + SIZE_DEST_FPATH + SIZE_FILESIZE + SIZE_SEQNUM;
-	public static final int SIZE_DATA = SIZE_DATA_PACKET - SIZE_CHECKSUM - SIZE_SEQNUM - SIZE_ATTACHEDDATASIZE;
-	public static final int SIZE_ACK_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM;
+	public static final int SIZE_TRANSFER_MODE = 1;
+	public static final int SIZE_WINDOW_SIZE = 4;
+	public static final int SIZE_PACKET_SIZE = 4;
+	public static final int SIZE_RANGE = 8 + 8;
+	public static final int SIZE_FILE_VERSION = 8;
+	public static final int SIZE_FEC = 1 + 1;
+	public static final int SIZE_COMPRESSION = 1 + 4;
+	public static final int SIZE_BLOCK_HEADER = 8 + 4 + 4;
+	public static final int SIZE_DELTA = 4;
+	public static final int SIZE_INTEGRITY = 1 + 1;
+	public static final int SIZE_EARLY_DATA = 1;
+	public static final int SIZE_SIGNATURE_REQUEST = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + 4;
+	public static final int SIZE_SIGNATURE_HEADER = SIZE_CHECKSUM + SIZE_SEQNUM + 4;
+	public static final int SIZE_FIN_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + 8;
+	public static final int SIZE_DATA_PACKET = 1000; // Limitation of UnreliNet, used unless a larger size is negotiated
+	// Largest UDP payload over IPv4
+	public static final int MAX_SIZE_DATA_PACKET = 65507;
+	public static final int SIZE_METADATA_PACKET = SIZE_CHECKSUM + SIZE_DEST_FPATH + SIZE_FILESIZE + SIZE_SEQNUM
+			+ SIZE_SESSION_ID + SIZE_TRANSFER_MODE + SIZE_WINDOW_SIZE + SIZE_PACKET_SIZE + SIZE_RANGE
+			+ SIZE_FILE_VERSION + SIZE_FEC + SIZE_COMPRESSION + SIZE_DELTA + SIZE_INTEGRITY + SIZE_EARLY_DATA;
+	public static final int SIZE_DATA_HEADER = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID + SIZE_ATTACHEDDATASIZE;
+	// A single mapping cannot exceed 2GB, the source file is mapped in regions of whole packets of about 1GB
+	public static final int SIZE_MAPPED_REGION = 1 << 30;
+	public static final int SIZE_SACK_BITMAP = 32;
+	public static final int SIZE_ACK_PACKET = SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SACK_BITMAP;
+	
+	public static final byte MODE_GO_BACK_N = 0;
+	public static final byte MODE_SELECTIVE_REPEAT = 1;
+	// Sequence number of the FIN-ACK
+	public static final int ACK_FIN = -2;
+	// Sequence number of the ACK of the meta-data packet, a cumulative ACK 0 is a duplicate ACK while packet 1 is missing
+	public static final int ACK_METADATA = -3;
+	// Largest range whose data is sent along with the meta-data packet, larger ones may be resumed instead
+	public static final long MAX_EARLY_DATA_RANGE = 1 << 20;
+	// Times the FIN is sent without a FIN-ACK before the sender leaves anyway
+	public static final int FIN_RETRIES = 3;
+	// Time without a valid ACK after which the receiver is taken to be gone (ms)
+	public static final int RECEIVER_TIMEOUT = 60000;
+	// Most data or parity packets of a stream, so that the sequence number after the last one still fits in an int
+	public static final int MAX_SEQNUM = Integer.MAX_VALUE - 1;
+	// Number of duplicate ACKs before the missing packets are retransmitted without waiting for the timer
+	public static final int DUP_ACK_THRESHOLD = 3;
+	// Times the last packet is sent again to ask for the ACK -1 with the digest of the receiver
+	public static final int DIGEST_RETRIES = 10;
+	// Pacing rate over the congestion window per RTT, as in Linux
+	public static final double SLOW_START_PACING_GAIN = 2;
+	public static final double PACING_GAIN = 1.2;
 	
 	private InetSocketAddress addr;
-	private DatagramSocket sk;
-	private DatagramPacket pkt;
+	// Non-blocking channel connected to the receiver, the selector (or a shared poller) waits for ACKs with a timeout
+	private DatagramChannel channel;
+	private Selector selector;
+	private SocketPoller poller;
+	private SelectionKey pollerKey;
+	// Packets with sequence number 0 and their ACKs are checked with CRC32, as they negotiate the checksum
 	private CRC32 crc;
-	private ByteBuffer dataBuffer, headerBuffer;
-	private byte[] headerByteArray, dataByteArray;
-	private BufferedInputStream sourceBufferedInputStream;
+	private Checksum checksum;
+	private byte checksumType;
+	private ByteBuffer headerBuffer, ackBuffer;
+	private byte[] headerByteArray;
+	private FileChannel sourceChannel;
+	// The window is returned to a shared pool on close()
+	private PacketBufferPool bufferPool;
+	private boolean isBufferPoolShared;
+	// Direct buffers of the packets in flight, indexed by seqNum % windowSize
+	private ByteBuffer[] windowPackets;
+	private int[] windowPacketLengths;
+	private long[] windowSentTimes;
+	private boolean[] windowAcked;
+	// Karn's rule: no RTT samples from packets that have been retransmitted
+	private boolean[] windowRetransmitted;
+	private byte transferMode;
+	private int windowSize;
+	// Negotiated with the receiver through the meta-data packet
+	private int dataPacketSize, dataSize;
+	private int duplicateAckCount;
+	private TransferOptions options;
+	private RttEstimator rttEstimator;
+	// Memory-mapped mode: the data is gathered from the mapped source file instead of copied into windowPackets
+	private boolean isMemoryMapped;
+	private MappedByteBuffer[] mappedRegions;
+	private long mappedRegionSize;
+	private ByteBuffer[][] windowGatherBuffers;
+	private int[] windowRegions;
+	private CongestionController congestionController;
+	// Forward error correction, parity of the group being sent
+	private ErasureCode erasureCode;
+	private ByteBuffer[] parityShards;
+	private int parityLength;
+	private ByteBuffer parityPacket;
+	// Compression, the block being sent is blockPayload up to blockPayloadSize
+	private BlockCodec codec;
+	private int blockSize;
+	private byte[] rawBlock, compressedBlock, blockPayload;
+	private int blockPayloadSize, blockPayloadPosition;
+	// Range offsets of the block being sent and the next one
+	private long blockOffset, nextBlockOffset;
+	// Delta sync, deltaEncoder is only set once the receiver has a basis file
+	private int deltaBlockSize;
+	private DeltaEncoder deltaEncoder;
+	// Digest of the range in order, compared with the one of the receiver at the end
+	private byte digestType;
+	private MessageDigest digest;
+	private byte[] digestValue;
+	// Bytes at the start of the range that the receiver kept from an interrupted transfer, also covered by the digest
+	private long resumedSize;
+	
+	private TokenBucket pacer;
+	private long rateLimit;
+	private boolean isPaced;
+	
+	// Zero data is sent as the negated size only, compared against zeroBuffer
+	private boolean isSparse;
+	private byte[] zeros;
+	private ByteBuffer zeroBuffer;
+	
+	// Zero-RTT, the data is sent before the meta-data packet has been ACKed
+	private boolean isEarlyData, isMetaDataAcked, isMetaDataRetransmitted;
+	private long metaDataSentTime;
+	// System.nanoTime() of the last valid ACK
+	private long lastAckTime;
+	
+	private int seqNum;
+	private int sessionId;
+	private long sourceFileSize, sourceFileVersion;
+	// Part of the source file sent by this sender
+	private long rangeOffset, rangeSize;
+	private String srcFilePath, destFilePath;
+	private TransferMetrics metrics;
 	
 	private static Logger log;
-	private static int seqNum;
-	private static long sourceFileSize;
-	private static String srcFilePath, destFilePath;
 	
-	public FileSender (String host, int port, String srcFpath, String destFpath) throws SocketException {
+	public FileSender (String host, int port, String srcFpath, String destFpath) throws IOException {
+		this(host, port, srcFpath, destFpath, new TransferOptions());
+	}
+	
+	public FileSender (String host, int port, String srcFpath, String destFpath, TransferOptions options) throws IOException {
+		this(host, port, srcFpath, destFpath, options, newSessionId(), 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Sender of the rangeSize bytes of the source file starting at rangeOffset,
+	 * capped by the end of the file. The streams of a file share the same session ID.
+	 */
+	public FileSender (String host, int port, String srcFpath, String destFpath, TransferOptions options,
+			int sessionId, long rangeOffset, long rangeSize) throws IOException {
 		addr = new InetSocketAddress(host, port);
-		sk = new DatagramSocket();
 		crc = new CRC32();
+		checksumType = options.getChecksumType();
+		checksum = Checksums.createChecksum(checksumType);
+		digestType = options.getDigestType();
+		digest = Checksums.createDigest(digestType);
+		isMemoryMapped = options.isMemoryMapped();
 		
 		log = Logger.getLogger(FileSender.class.getName());
 		
 		srcFilePath = srcFpath;
 		destFilePath = destFpath;
+		this.sessionId = sessionId;
+		this.options = options;
+		transferMode = options.getTransferMode();
+		windowSize = options.getWindowSize();
+		if (transferMode == MODE_SELECTIVE_REPEAT) {
+			// Options set from code are not checked by parse()
+			windowSize = Math.min(windowSize, TransferOptions.MAX_SELECTIVE_WINDOW_SIZE);
+		}
+		dataPacketSize = options.getDataPacketSize();
+		dataSize = dataPacketSize - SIZE_DATA_HEADER;
+		rttEstimator = options.createRttEstimator();
+		congestionController = options.createCongestionController();
+		codec = options.createCodec();
+		blockSize = options.getCompressionBlockSize();
+		deltaBlockSize = options.getDeltaBlockSize();
+		isPaced = options.isPaced();
+		isSparse = options.isSparse();
+		if (deltaBlockSize > 0) {
+			codec = null;
+		}
+		if (codec != null || deltaBlockSize > 0) {
+			isMemoryMapped = false;
+			isSparse = false;
+		}
+		if (options.getFecDataShards() > 0) {
+			if (deltaBlockSize > 0) {
+				System.out.println("FEC is not used with delta sync");
+			} else if (codec != null) {
+				// Lost packets are rebuilt from the file, which only holds whole decompressed blocks
+				System.out.println("FEC is not used with compression");
+			} else if (transferMode == MODE_GO_BACK_N) {
+				// The receiver drops the out-of-order packets needed to rebuild a lost one
+				System.out.println("FEC is only used with Selective Repeat");
+			} else {
+				erasureCode = new ErasureCode(options.getFecDataShards(), options.getFecParityShards());
+			}
+		}
 		
 		try {
-			// http://stackoverflow.com/questions/3122422/usage-of-bufferedinputstream
-			File sourceFile = new File(srcFpath);
-			sourceFileSize = sourceFile.length();
-			sourceBufferedInputStream = new BufferedInputStream(new FileInputStream(sourceFile));
-		} catch (FileNotFoundException e) {
+			sourceChannel = FileChannel.open(Paths.get(srcFpath), StandardOpenOption.READ);
+			sourceFileSize = sourceChannel.size();
+			sourceFileVersion = Files.getLastModifiedTime(Paths.get(srcFpath)).toMillis();
+		} catch (IOException e) {
 			System.out.println("File not found!");
+			throw e;
+		}
+		this.rangeOffset = Math.min(rangeOffset, sourceFileSize);
+		this.rangeSize = Math.min(rangeSize, sourceFileSize - this.rangeOffset);
+		checkRangeSize();
+		if (options.getRateLimit() > 0) {
+			rateLimit = Math.max(1, options.getRateLimit() / getStreamCount(sourceFileSize, options));
+		}
+		
+		channel = DatagramChannel.open();
+		channel.connect(addr);
+		channel.configureBlocking(false);
+		ackBuffer = ByteBuffer.allocateDirect(SIZE_ACK_PACKET);
+		
+		metrics = new TransferMetrics("FileSender", sessionId + "-" + this.rangeOffset);
+		if (options.isJmxEnabled()) {
+			metrics.register();
+		}
+		if (options.getStatsInterval() > 0) {
+			metrics.startReporting(options.getStatsInterval());
+		}
+	}
+	
+	/**
+	 * Largest range a stream can send in packets of dataSize bytes, without running out of sequence or parity numbers.
+	 */
+	public static long getMaxRangeSize(int dataSize, int fecDataShards, int fecParityShards) {
+		long packetCount = MAX_SEQNUM;
+		if (fecDataShards > 0) {
+			packetCount = Math.min(packetCount, (long) (MAX_SEQNUM / fecParityShards) * fecDataShards);
+		}
+		return packetCount * dataSize;
+	}
+	
+	private void checkRangeSize() throws IOException {
+		int fecDataShards = erasureCode != null ? erasureCode.getDataShards() : 0;
+		int fecParityShards = erasureCode != null ? erasureCode.getParityShards() : 0;
+		if (rangeSize > getMaxRangeSize(dataSize, fecDataShards, fecParityShards)) {
+			throw new IOException("Range of " + rangeSize + " bytes needs more than " + MAX_SEQNUM + " packets of "
+					+ dataPacketSize + " bytes, send it in more streams");
+		}
+	}
+	
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Waits for the ACKs through a poller shared with other senders instead of a selector of its own.
+	 */
+	public void setSocketPoller(SocketPoller poller) throws IOException {
+		pollerKey = poller.register(channel);
+		this.poller = poller;
+	}
+	
+	/**
+	 * Takes the window from a pool shared with other senders, if its buffers hold a data packet.
+	 */
+	public void setBufferPool(PacketBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		isBufferPoolShared = true;
+	}
+	
+	private void mapSourceFile() throws IOException {
+		mappedRegionSize = (long) (SIZE_MAPPED_REGION / dataSize) * dataSize;
+		mappedRegions = new MappedByteBuffer[(int) ((rangeSize + mappedRegionSize - 1) / mappedRegionSize)];
+		for (int i = 0; i < mappedRegions.length; i++) {
+			long position = i * mappedRegionSize;
+			long size = Math.min(mappedRegionSize, rangeSize - position);
+			mappedRegions[i] = sourceChannel.map(FileChannel.MapMode.READ_ONLY, rangeOffset + position, size);
 		}
 	}
 	
@@ -85,117 +377,1090 @@ public class FileSender {
 		// reserve space for checksum
 		headerBuffer.putLong(0);
 		headerBuffer.putInt(seqNum);
+		headerBuffer.putInt(sessionId);
 		byte[] byteArrayDestFilePath = destFilePath.getBytes("UTF-8");
 		// Add empty spaces to the extra space to ensure smooth reading at receiver side.
 		headerBuffer.put(new byte[SIZE_DEST_FPATH - byteArrayDestFilePath.length]); 
 		headerBuffer.put(byteArrayDestFilePath);
 		headerBuffer.putLong(sourceFileSize);
+		headerBuffer.put(transferMode);
+		headerBuffer.putInt(windowSize);
+		headerBuffer.putInt(dataPacketSize);
+		headerBuffer.putLong(rangeOffset);
+		headerBuffer.putLong(rangeSize);
+		headerBuffer.putLong(sourceFileVersion);
+		headerBuffer.put((byte) (erasureCode == null ? 0 : erasureCode.getDataShards()));
+		headerBuffer.put((byte) (erasureCode == null ? 0 : erasureCode.getParityShards()));
+		headerBuffer.put(codec == null ? BlockCodec.CODEC_NONE : codec.getId());
+		headerBuffer.putInt(blockSize);
+		headerBuffer.putInt(deltaBlockSize);
+		headerBuffer.put(checksumType);
+		headerBuffer.put(digestType);
+		isEarlyData = options.isZeroRtt() && deltaBlockSize == 0 && dataPacketSize <= SIZE_DATA_PACKET
+				&& rangeSize <= MAX_EARLY_DATA_RANGE;
+		headerBuffer.put((byte) (isEarlyData ? 1 : 0));
 		
 		crc.reset();
 		crc.update(headerByteArray, 8, headerByteArray.length-8);
 		long chksum = crc.getValue();
 		headerBuffer.rewind();
 		headerBuffer.putLong(chksum);
-
-		pkt = new DatagramPacket(headerByteArray, headerByteArray.length, addr);
 		
 		// Debug output
-		log.fine("Send the following file: " + srcFilePath);
+		log.fine("Send the following file: " + srcFilePath + " Range: " + rangeOffset + "+" + rangeSize);
 		log.fine("=============Sending Meta-Data=============");
+		log.fine("Session: " + sessionId);
 		log.fine("Sent CRC:" + chksum);
-		sk.send(pkt);
+		headerBuffer.rewind();
+		send(headerBuffer);
+		metrics.onPacketSent(false);
+		metaDataSentTime = System.nanoTime();
+		lastAckTime = metaDataSentTime;
+		if (isEarlyData) {
+			// sendData() takes care of the ACK, the receiver uses the proposed size and does not resume
+			log.fine("Data follows at once");
+			return;
+		}
+		isMetaDataAcked = true;
 		
-		waitAck(seqNum, pkt);
+		if (waitAck(ACK_METADATA, headerBuffer)) {
+			// The receiver may only accept a smaller packet size
+			int acceptedPacketSize = ackBuffer.getInt(SIZE_CHECKSUM + SIZE_SEQNUM);
+			if (acceptedPacketSize > SIZE_DATA_HEADER && acceptedPacketSize < dataPacketSize) {
+				dataPacketSize = acceptedPacketSize;
+				dataSize = dataPacketSize - SIZE_DATA_HEADER;
+				checkRangeSize();
+			}
+			log.fine("Data packet size: " + dataPacketSize);
+			// Bytes at the start of the range left by an interrupted transfer
+			long resumedSize = ackBuffer.getLong(SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_PACKET_SIZE);
+			if (resumedSize > 0 && resumedSize <= rangeSize) {
+				this.resumedSize = resumedSize;
+				digestPrefix(resumedSize);
+				rangeOffset += resumedSize;
+				rangeSize -= resumedSize;
+				log.fine("Resume from " + rangeOffset + ", skipping " + resumedSize);
+			}
+			long basisSize = ackBuffer.getLong(SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_PACKET_SIZE + 8);
+			if (deltaBlockSize > 0 && basisSize > 0) {
+				byte[] signature = fetchSignature(basisSize);
+				deltaEncoder = new DeltaEncoder(sourceChannel, rangeOffset, rangeSize, signature, deltaBlockSize, digest);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the first size bytes of the range, which the receiver already has, into the digest. The receiver
+	 * reads them back from its file, so that the digest still covers the whole range.
+	 */
+	private void digestPrefix(long size) throws IOException {
+		if (digest == null) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1 << 16));
+		for (long position = 0; position < size; ) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size - position));
+			int count = sourceChannel.read(buffer, rangeOffset + position);
+			if (count <= 0) {
+				throw new IOException("Unable to read " + srcFilePath + " at " + (rangeOffset + position));
+			}
+			buffer.flip();
+			digest.update(buffer);
+			position += count;
+		}
 	}
 	
-	public void sendData() {
-		dataByteArray = new byte[SIZE_DATA_PACKET]; 
-		dataBuffer = ByteBuffer.wrap(dataByteArray);
-		seqNum = 1; // Initialized to 1
+	/**
+	 * Pulls the signature of the basis file from the receiver, with up to
+	 * windowSize chunk requests outstanding and a retransmission on timeout.
+	 */
+	private byte[] fetchSignature(long basisSize) throws IOException {
+		long signatureSize = basisSize / deltaBlockSize * DeltaSignature.SIZE_ENTRY;
+		if (signatureSize > Integer.MAX_VALUE) {
+			throw new IOException("Signature of the basis file is too large: " + signatureSize);
+		}
+		byte[] signature = new byte[(int) signatureSize];
+		int chunkSize = dataPacketSize - SIZE_SIGNATURE_HEADER;
+		int chunkCount = (int) ((signatureSize + chunkSize - 1) / chunkSize);
+		boolean[] isReceived = new boolean[chunkCount];
+		long[] requestTimes = new long[chunkCount];
+		ByteBuffer request = ByteBuffer.allocateDirect(SIZE_SIGNATURE_REQUEST);
+		// Chunks are as large as data packets
+		ackBuffer = ByteBuffer.allocateDirect(Math.max(SIZE_ACK_PACKET, dataPacketSize));
+		log.fine("=============Receiving Signature=============");
+		log.fine("Basis size: " + basisSize + " Signature size: " + signatureSize + " Chunks: " + chunkCount);
+		
+		int firstMissing = 0;
+		while (firstMissing < chunkCount) {
+			long now = System.nanoTime();
+			int outstanding = 0;
+			for (int i = firstMissing; i < chunkCount && outstanding < windowSize; i++) {
+				if (isReceived[i]) {
+					continue;
+				}
+				if (requestTimes[i] == 0 || now - requestTimes[i] >= rttEstimator.getTimeout()) {
+					request.clear();
+					// reserve space for checksum
+					request.putLong(0);
+					request.putInt(0);
+					request.putInt(sessionId);
+					request.putInt(i);
+					crc.reset();
+					request.flip();
+					request.position(8);
+					crc.update(request);
+					request.putLong(0, crc.getValue());
+					request.position(0);
+					send(request);
+					requestTimes[i] = now;
+				}
+				outstanding += 1;
+			}
+			
+			checkReceiverTimeout();
+			if (!receiveAck(rttEstimator.getTimeout())) {
+				continue;
+			}
+			int ackSeqNum = readAck();
+			int chunk = -(ackSeqNum + 4);
+			if (ackSeqNum == Integer.MIN_VALUE || chunk < 0 || chunk >= chunkCount || isReceived[chunk]) {
+				continue;
+			}
+			int length = ackBuffer.getInt(SIZE_CHECKSUM + SIZE_SEQNUM);
+			if (length != Math.min(chunkSize, signatureSize - (long) chunk * chunkSize)) {
+				continue;
+			}
+			ackBuffer.position(SIZE_SIGNATURE_HEADER);
+			ackBuffer.get(signature, chunk * chunkSize, length);
+			isReceived[chunk] = true;
+			while (firstMissing < chunkCount && isReceived[firstMissing]) {
+				firstMissing += 1;
+			}
+		}
+		return signature;
+	}
+	
+	public void sendData() throws IOException {
+		if (!isBufferPoolShared || bufferPool.getBufferSize() < dataPacketSize) {
+			bufferPool = new PacketBufferPool(windowSize, dataPacketSize);
+			isBufferPoolShared = false;
+		}
+		windowPackets = new ByteBuffer[windowSize];
+		for (int i = 0; i < windowSize; i++) {
+			windowPackets[i] = bufferPool.acquire();
+		}
+		windowPacketLengths = new int[windowSize];
+		windowSentTimes = new long[windowSize];
+		windowAcked = new boolean[windowSize];
+		windowRetransmitted = new boolean[windowSize];
+		if (isMemoryMapped) {
+			mapSourceFile();
+			windowGatherBuffers = new ByteBuffer[windowSize][2];
+			windowRegions = new int[windowSize];
+			for (int i = 0; i < windowSize; i++) {
+				windowGatherBuffers[i][0] = windowPackets[i];
+				windowRegions[i] = -1;
+			}
+		}
+		if (erasureCode != null) {
+			parityShards = new ByteBuffer[erasureCode.getParityShards()];
+			for (int i = 0; i < parityShards.length; i++) {
+				parityShards[i] = ByteBuffer.allocate(dataSize);
+			}
+			parityPacket = bufferPool.acquire();
+		}
+		if (codec != null && deltaEncoder == null) {
+			rawBlock = new byte[blockSize];
+			compressedBlock = new byte[blockSize];
+		}
+		if (isSparse) {
+			zeros = new byte[dataSize];
+			zeroBuffer = ByteBuffer.wrap(zeros);
+		}
+		if (rateLimit > 0 || isPaced) {
+			pacer = new TokenBucket(rateLimit > 0 ? rateLimit : Double.POSITIVE_INFINITY, 2L * dataPacketSize);
+		}
+		seqNum = 1; // Initialized to 1, next sequence number to be sent
+		int base = 1; // Oldest unacknowledged sequence number
+		boolean isEndOfFile = false;
 		
-		int numBytesRead = 0;
-		byte[] data = new byte[SIZE_DATA];
 		log.fine("=============Sending Data=============");
 		
-		// While there are still bytes to be read, -1 signifies end of stream
+		while (!isEndOfFile || base < seqNum || !isMetaDataAcked) {
+			// Fill up the window with new packets, as far as the pacing rate allows
+			long pacingDelay = 0;
+			// Compared as a difference, base + window may not fit in an int
+			while (!isEndOfFile && seqNum - base < Math.min(windowSize, congestionController.getWindow())) {
+				if (pacer != null && (pacingDelay = pacer.getDelay(System.nanoTime())) > 0) {
+					break;
+				}
+				int numBytesRead = deltaEncoder != null ? readDeltaDataPacket(seqNum)
+						: codec != null ? readCompressedDataPacket(seqNum)
+						: isMemoryMapped ? makeMappedDataPacket(seqNum) : readDataPacket(seqNum);
+				// -1 signifies end of stream
+				if (numBytesRead == -1) {
+					isEndOfFile = true;
+					break;
+				}
+				if (seqNum > MAX_SEQNUM) {
+					// Compressed blocks and deltas may take more packets than the range size suggests
+					throw new IOException("Out of sequence numbers after " + MAX_SEQNUM + " packets");
+				}
+				sendWindowPacket(seqNum, false);
+				if (erasureCode != null) {
+					addParity(seqNum);
+				}
+				seqNum += 1;
+			}
+			
+			if (isEndOfFile && base == seqNum && isMetaDataAcked) {
+				break;
+			}
+			
+			// Otherwise the retransmission timers are checked below, or the next packet is paced
+			long timeout = base < seqNum ? getTimerDelay(base) : pacingDelay;
+			if (pacingDelay > 0) {
+				timeout = Math.min(timeout, pacingDelay);
+			}
+			if (!isMetaDataAcked) {
+				long metaDataDelay = Math.max(1000000, metaDataSentTime + rttEstimator.getTimeout() - System.nanoTime());
+				timeout = base < seqNum || pacingDelay > 0 ? Math.min(timeout, metaDataDelay) : metaDataDelay;
+			}
+			if (receiveAck(timeout)) {
+				int ackSeqNum = readAck();
+				if (ackSeqNum == ACK_METADATA) {
+					onMetaDataAck(base);
+				} else if (ackSeqNum == -1) {
+					// Receiver has the whole range
+					log.fine("ACK -1");
+					for (int i = base; i < seqNum; i++) {
+						if (!windowAcked[i % windowSize]) {
+							metrics.addBytesDelivered(windowPacketLengths[i % windowSize] - SIZE_DATA_HEADER);
+						}
+					}
+					verifyDigest();
+					sendFin();
+					return;
+				} else if (ackSeqNum != Integer.MIN_VALUE) {
+					// Only sent once the receiver has the meta-data packet
+					isMetaDataAcked = true;
+					base = processAck(ackSeqNum, base);
+				}
+			}
+			
+			if (!isMetaDataAcked) {
+				resendExpiredMetaData(base < seqNum);
+			}
+			resendExpiredPackets(base);
+			checkReceiverTimeout();
+			metrics.setWindow(Math.min(windowSize, congestionController.getWindow()));
+			if (pacer != null) {
+				updatePacingRate();
+			}
+		}
+		// Everything has been ACKed, but not with the ACK -1
+		awaitDigest();
+		sendFin();
+	}
+	
+	/**
+	 * Takes the ACK of the meta-data packet sent along with the first window. If the meta-data packet had
+	 * to be sent again, the receiver has dropped the packets that arrived before it, which are sent again
+	 * at once instead of waiting for their timers.
+	 */
+	private void onMetaDataAck(int base) throws IOException {
+		if (isMetaDataAcked) {
+			return;
+		}
+		isMetaDataAcked = true;
+		log.fine("ACK of the meta-data");
+		if (!isMetaDataRetransmitted) {
+			long rtt = System.nanoTime() - metaDataSentTime;
+			rttEstimator.addSample(rtt);
+			metrics.addRttSample(rtt, rttEstimator.getSmoothedRtt());
+			return;
+		}
+		for (int i = base; i < seqNum; i++) {
+			int slot = i % windowSize;
+			if (!windowAcked[slot] && windowSentTimes[slot] - metaDataSentTime < 0) {
+				sendWindowPacket(i, true);
+			}
+		}
+	}
+	
+	/**
+	 * Resends the meta-data packet once its timer has expired. The timer runs on the same RTO as the
+	 * packets of the first window, which back it off themselves if they are still in flight.
+	 */
+	private void resendExpiredMetaData(boolean isDataInFlight) throws IOException {
+		if (System.nanoTime() - metaDataSentTime < rttEstimator.getTimeout()) {
+			return;
+		}
+		headerBuffer.rewind();
+		send(headerBuffer);
+		metrics.onPacketSent(true);
+		metrics.onTimeout();
+		metaDataSentTime = System.nanoTime();
+		isMetaDataRetransmitted = true;
+		if (!isDataInFlight) {
+			rttEstimator.backoff();
+		}
+	}
+	
+	/**
+	 * Tells the receiver that the range is done, so that it can drop the stream without lingering,
+	 * and waits for the FIN-ACK. Gives up after FIN_RETRIES timeouts, the receiver lingers anyway.
+	 */
+	private void sendFin() throws IOException {
+		ByteBuffer fin = ByteBuffer.allocate(SIZE_FIN_PACKET);
+		// reserve space for checksum
+		fin.putLong(0);
+		fin.putInt(0);
+		fin.putInt(sessionId);
+		fin.putLong(rangeOffset);
+		crc.reset();
+		crc.update(fin.array(), 8, SIZE_FIN_PACKET - 8);
+		fin.putLong(0, crc.getValue());
+		
+		for (int i = 0; i < FIN_RETRIES; i++) {
+			fin.rewind();
+			send(fin);
+			metrics.onPacketSent(i > 0);
+			long deadline = System.nanoTime() + rttEstimator.getTimeout();
+			long delay;
+			while ((delay = deadline - System.nanoTime()) > 0) {
+				if (receiveAck(delay) && readAck() == ACK_FIN) {
+					log.fine("FIN-ACK");
+					return;
+				}
+			}
+		}
+		log.fine("No FIN-ACK");
+	}
+	
+	/**
+	 * Gives up once nothing has been heard from the receiver for RECEIVER_TIMEOUT, e.g. after it has gone away.
+	 */
+	private void checkReceiverTimeout() throws IOException {
+		if (System.nanoTime() - lastAckTime >= RECEIVER_TIMEOUT * 1000000L) {
+			throw new IOException("no ACK from the receiver for " + RECEIVER_TIMEOUT / 1000 + "s");
+		}
+	}
+	
+	/**
+	 * The cumulative ACK of the last packet may overtake the ACK -1, which carries the digest
+	 * of the receiver, so the last packet is sent again until the ACK -1 arrives. Throws an
+	 * IOException if it never does, as the range has not been verified.
+	 */
+	private void awaitDigest() throws IOException {
+		if (digest == null || seqNum == 1) {
+			return;
+		}
+		for (int i = 0; i < DIGEST_RETRIES; i++) {
+			long deadline = System.nanoTime() + rttEstimator.getTimeout();
+			long delay;
+			while ((delay = deadline - System.nanoTime()) > 0) {
+				if (receiveAck(delay) && readAck() == -1) {
+					verifyDigest();
+					return;
+				}
+			}
+			sendWindowPacket(seqNum - 1, true);
+		}
+		throw new IOException("no digest from the receiver, " + destFilePath + " has not been verified in the range "
+				+ (rangeOffset - resumedSize) + "+" + (resumedSize + rangeSize));
+	}
+	
+	/**
+	 * Compares the digest of the range with the one in the ACK -1 in ackBuffer, and throws an IOException if they differ.
+	 */
+	private void verifyDigest() throws IOException {
+		if (digest == null) {
+			return;
+		}
+		if (digestValue == null) {
+			digestValue = digest.digest();
+		}
+		for (int i = 0; i < digestValue.length; i++) {
+			if (ackBuffer.get(SIZE_CHECKSUM + SIZE_SEQNUM + i) != digestValue[i]) {
+				throw new IOException("digest mismatch, " + destFilePath + " differs from the source in the range "
+						+ (rangeOffset - resumedSize) + "+" + (resumedSize + rangeSize));
+			}
+		}
+		log.fine("Digest of the range matches");
+	}
+	
+	/**
+	 * Slides the window with the cumulative ACK and the SACK bitmap,
+	 * and returns the new oldest unacknowledged sequence number.
+	 */
+	private int processAck(int ackSeqNum, int base) throws IOException {
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("ACK " + ackSeqNum);
+		}
+		int ackedPackets = 0;
+		long ackedBytes = 0;
+		long rtt = -1;
+		if (ackSeqNum >= base && ackSeqNum < seqNum) {
+			// Cumulative ACK, the packet that triggered it is the latest one covered, unless it fills a gap.
+			// Then the trigger is a retransmission, and the latest packet may have arrived long before.
+			boolean isGapFilled = false;
+			for (int i = base; i <= ackSeqNum; i++) {
+				int slot = i % windowSize;
+				if (!windowAcked[slot]) {
+					ackedPackets += 1;
+					ackedBytes += windowPacketLengths[slot] - SIZE_DATA_HEADER;
+				}
+				isGapFilled = isGapFilled || windowRetransmitted[slot] || (windowAcked[slot] && i < ackSeqNum);
+			}
+			if (!isGapFilled && !windowAcked[ackSeqNum % windowSize]) {
+				rtt = addRttSample(ackSeqNum);
+			}
+			base = ackSeqNum + 1;
+			duplicateAckCount = 0;
+			rttEstimator.resetBackoff();
+		} else if (ackSeqNum == base - 1) {
+			duplicateAckCount += 1;
+		} else {
+			// Stale ACK from before the window
+			return base;
+		}
+		
+		if (transferMode == MODE_GO_BACK_N) {
+			metrics.addBytesDelivered(ackedBytes);
+			if (ackedPackets > 0) {
+				congestionController.onAck(ackedPackets, rtt);
+			}
+			if (duplicateAckCount == DUP_ACK_THRESHOLD) {
+				congestionController.onLoss();
+				for (int i = base; i < seqNum; i++) {
+					sendWindowPacket(i, true);
+				}
+			}
+			return base;
+		}
+		
+		int highestSackedSeqNum = -1;
+		for (int i = 0; i < SIZE_SACK_BITMAP * 8; i++) {
+			if (isSacked(ackBuffer, i)) {
+				int sackSeqNum = ackSeqNum + 1 + i;
+				if (sackSeqNum >= base && sackSeqNum < seqNum) {
+					if (!windowAcked[sackSeqNum % windowSize]) {
+						long sackRtt = addRttSample(sackSeqNum);
+						rtt = rtt == -1 ? sackRtt : rtt;
+						ackedPackets += 1;
+						ackedBytes += windowPacketLengths[sackSeqNum % windowSize] - SIZE_DATA_HEADER;
+					}
+					windowAcked[sackSeqNum % windowSize] = true;
+					highestSackedSeqNum = sackSeqNum;
+				}
+			}
+		}
+		while (base < seqNum && windowAcked[base % windowSize]) {
+			base += 1;
+		}
+		metrics.addBytesDelivered(ackedBytes);
+		if (ackedPackets > 0) {
+			congestionController.onAck(ackedPackets, rtt);
+		}
+		
+		// Fast retransmit of the holes reported by the SACK bitmap
+		if (duplicateAckCount == DUP_ACK_THRESHOLD) {
+			congestionController.onLoss();
+			for (int i = base; i < highestSackedSeqNum; i++) {
+				if (!windowAcked[i % windowSize]) {
+					sendWindowPacket(i, true);
+				}
+			}
+		}
+		return base;
+	}
+	
+	/**
+	 * Reads the next dataSize bytes of the source file straight into a new packet in the window.
+	 * Returns the number of bytes read, or -1 at the end of the file.
+	 */
+	private int readDataPacket(int seqNum) throws IOException {
+		long offset = (long) (seqNum - 1) * dataSize;
+		if (offset >= rangeSize) {
+			return -1;
+		}
+		ByteBuffer packet = windowPackets[seqNum % windowSize];
+		packet.clear();
+		packet.position(SIZE_DATA_HEADER);
+		packet.limit(SIZE_DATA_HEADER + (int) Math.min(dataSize, rangeSize - offset));
+		// Every packet but the last one must be full, as the receiver derives the file offset from seqNum
+		long position = rangeOffset + offset - SIZE_DATA_HEADER;
+		while (packet.hasRemaining()) {
+			if (sourceChannel.read(packet, position + packet.position()) == -1) {
+				break;
+			}
+		}
+		int numBytesRead = packet.position() - SIZE_DATA_HEADER;
+		if (numBytesRead == 0) {
+			return -1;
+		}
+		if (isSparse && isZero(packet, numBytesRead)) {
+			// Drop the data from the packet
+			packet.position(SIZE_DATA_HEADER);
+			makeDataPacket(seqNum, -numBytesRead);
+			if (digest != null) {
+				digest.update(zeros, 0, numBytesRead);
+			}
+			return numBytesRead;
+		}
+		makeDataPacket(seqNum, numBytesRead);
+		if (digest != null) {
+			packet.position(SIZE_DATA_HEADER);
+			digest.update(packet);
+		}
+		return numBytesRead;
+	}
+	
+	/**
+	 * Returns true if the numBytesRead bytes of the packet before its position are all zero.
+	 */
+	private boolean isZero(ByteBuffer packet, int numBytesRead) {
+		int position = packet.position();
+		packet.position(position - numBytesRead);
+		zeroBuffer.clear();
+		zeroBuffer.limit(numBytesRead);
+		// Compares a vector at a time
+		boolean isZero = packet.mismatch(zeroBuffer) == -1;
+		packet.position(position);
+		return isZero;
+	}
+	
+	/**
+	 * Puts the next delta instruction into a new packet in the window.
+	 * Returns the size of the instruction, or -1 at the end of the range.
+	 */
+	private int readDeltaDataPacket(int seqNum) throws IOException {
+		ByteBuffer packet = windowPackets[seqNum % windowSize];
+		packet.clear();
+		packet.position(SIZE_DATA_HEADER);
+		int size = deltaEncoder.next(packet, dataSize);
+		if (size == -1) {
+			return -1;
+		}
+		makeDataPacket(seqNum, size);
+		return size;
+	}
+	
+	/**
+	 * Puts the next fragment of the block being sent into a new packet in the window, compressing
+	 * the next block first if needed. Returns the size of the data, or -1 at the end of the range.
+	 */
+	private int readCompressedDataPacket(int seqNum) throws IOException {
+		if (blockPayloadPosition == blockPayloadSize) {
+			if (nextBlockOffset >= rangeSize) {
+				return -1;
+			}
+			readBlock();
+		}
+		ByteBuffer packet = windowPackets[seqNum % windowSize];
+		packet.clear();
+		packet.position(SIZE_DATA_HEADER);
+		packet.putLong(rangeOffset + blockOffset);
+		packet.putInt(blockPayloadSize);
+		packet.putInt(blockPayloadPosition);
+		int length = Math.min(dataSize - SIZE_BLOCK_HEADER, blockPayloadSize - blockPayloadPosition);
+		packet.put(blockPayload, blockPayloadPosition, length);
+		blockPayloadPosition += length;
+		makeDataPacket(seqNum, SIZE_BLOCK_HEADER + length);
+		return SIZE_BLOCK_HEADER + length;
+	}
+	
+	/**
+	 * Reads and compresses the next block of the range, keeping it as it is if it does not shrink.
+	 */
+	private void readBlock() throws IOException {
+		int rawSize = (int) Math.min(blockSize, rangeSize - nextBlockOffset);
+		ByteBuffer raw = ByteBuffer.wrap(rawBlock, 0, rawSize);
+		while (raw.hasRemaining()) {
+			if (sourceChannel.read(raw, rangeOffset + nextBlockOffset + raw.position()) == -1) {
+				break;
+			}
+		}
+		if (digest != null) {
+			digest.update(rawBlock, 0, rawSize);
+		}
+		int compressedSize = codec.compress(rawBlock, rawSize, compressedBlock);
+		if (compressedSize > 0 && compressedSize < rawSize) {
+			blockPayload = compressedBlock;
+			blockPayloadSize = compressedSize;
+		} else {
+			blockPayload = rawBlock;
+			blockPayloadSize = rawSize;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Block at " + nextBlockOffset + " of size " + rawSize + " compressed to " + blockPayloadSize);
+		}
+		blockOffset = nextBlockOffset;
+		nextBlockOffset += rawSize;
+		blockPayloadPosition = 0;
+	}
+	
+	/**
+	 * Builds the header of a new packet in the window and points its payload at the
+	 * mapped source file. Returns the size of the payload, or -1 at the end of the file.
+	 */
+	private int makeMappedDataPacket(int seqNum) {
+		long offset = (long) (seqNum - 1) * dataSize;
+		if (offset >= rangeSize) {
+			return -1;
+		}
+		int slot = seqNum % windowSize;
+		// The regions only cover the range of this sender
+		int region = (int) (offset / mappedRegionSize);
+		int regionOffset = (int) (offset % mappedRegionSize);
+		int numBytesRead = (int) Math.min(dataSize, rangeSize - offset);
+		
+		// Views of a region are only created once per slot
+		if (windowRegions[slot] != region) {
+			windowGatherBuffers[slot][1] = mappedRegions[region].duplicate();
+			windowRegions[slot] = region;
+		}
+		ByteBuffer payload = windowGatherBuffers[slot][1];
+		payload.limit(regionOffset + numBytesRead);
+		payload.position(regionOffset);
+		boolean isZero = false;
+		if (isSparse) {
+			zeroBuffer.clear();
+			zeroBuffer.limit(numBytesRead);
+			isZero = payload.mismatch(zeroBuffer) == -1;
+		}
+		
+		ByteBuffer header = windowPackets[slot];
+		header.clear();
+		// reserve space for checksum
+		header.putLong(0);
+		header.putInt(seqNum);
+		header.putInt(sessionId);
+		header.putInt(isZero ? -numBytesRead : numBytesRead);
+		
+		checksum.reset();
+		header.flip();
+		header.position(8);
+		checksum.update(header);
+		if (!isZero) {
+			checksum.update(payload);
+			payload.position(regionOffset);
+		}
+		if (digest != null) {
+			digest.update(payload);
+			payload.position(regionOffset);
+		}
+		long chksum = checksum.getValue();
+		header.putLong(0, chksum);
+		
+		// sendWindowPacket sends the end of the payload, none of it for zero data
+		windowPacketLengths[slot] = SIZE_DATA_HEADER + (isZero ? 0 : numBytesRead);
+		windowAcked[slot] = false;
+		windowRetransmitted[slot] = false;
+		
+		// Debug output
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Packet " + seqNum + " with mapped data of size: " + numBytesRead);
+			log.fine("Sent CRC:" + chksum);
+		}
+		return numBytesRead;
+	}
+	
+	/**
+	 * Fills in the header and checksum of the packet whose data has been read into the window.
+	 * numBytesRead is negative for zero data, which is not part of the packet.
+	 */
+	private void makeDataPacket(int seqNum, int numBytesRead) {
+		int slot = seqNum % windowSize;
+		ByteBuffer packet = windowPackets[slot];
+		packet.flip();
+		long chksum = putDataHeader(packet, seqNum, sessionId, numBytesRead, checksum);
+		
+		windowPacketLengths[slot] = SIZE_DATA_HEADER + Math.max(0, numBytesRead);
+		windowAcked[slot] = false;
+		windowRetransmitted[slot] = false;
+		
+		// Debug output
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Packet " + seqNum + " with data of size: " + numBytesRead);
+			log.fine("Sent CRC:" + chksum);
+		}
+	}
+	
+	/**
+	 * Fills in the header and checksum of the data packet from the start to the limit of packet, whose data
+	 * is already in place. Returns the checksum. Shared with TransferBenchmark.
+	 */
+	static long putDataHeader(ByteBuffer packet, int seqNum, int sessionId, int attachedDataSize, Checksum checksum) {
+		packet.putInt(SIZE_CHECKSUM, seqNum);
+		packet.putInt(SIZE_CHECKSUM + SIZE_SEQNUM, sessionId);
+		packet.putInt(SIZE_CHECKSUM + SIZE_SEQNUM + SIZE_SESSION_ID, attachedDataSize);
+		checksum.reset();
+		packet.position(SIZE_CHECKSUM);
+		checksum.update(packet);
+		long chksum = checksum.getValue();
+		packet.putLong(0, chksum);
+		return chksum;
+	}
+	
+	/**
+	 * Adds a new packet to the parity of its group, and sends the parity once the group is complete.
+	 */
+	private void addParity(int seqNum) throws IOException {
+		int slot = seqNum % windowSize;
+		int length = windowPacketLengths[slot] - SIZE_DATA_HEADER;
+		// Zero data adds nothing to the parity, but the rebuilt packets are as long as the parity
+		int packetSize = isSparse ? (int) Math.min(dataSize, rangeSize - (long) (seqNum - 1) * dataSize) : length;
+		int dataIndex = (seqNum - 1) % erasureCode.getDataShards();
+		if (isMemoryMapped) {
+			ByteBuffer payload = windowGatherBuffers[slot][1];
+			erasureCode.encode(payload, payload.limit() - length, length, dataIndex, parityShards);
+		} else {
+			erasureCode.encode(windowPackets[slot], SIZE_DATA_HEADER, length, dataIndex, parityShards);
+		}
+		parityLength = Math.max(parityLength, packetSize);
+		
+		boolean isLastPacket = (long) seqNum * dataSize >= rangeSize;
+		if (dataIndex == erasureCode.getDataShards() - 1 || isLastPacket) {
+			sendParity((seqNum - 1) / erasureCode.getDataShards());
+		}
+	}
+	
+	private void sendParity(int group) throws IOException {
+		int parityCount = erasureCode.getParityShards();
+		for (int j = 0; j < parityCount; j++) {
+			ByteBuffer parity = parityShards[j];
+			parityPacket.clear();
+			// reserve space for checksum
+			parityPacket.putLong(0);
+			parityPacket.putInt(-(1 + group * parityCount + j));
+			parityPacket.putInt(sessionId);
+			parityPacket.putInt(parityLength);
+			parity.limit(parityLength);
+			parityPacket.put(parity);
+			// Start the next group from zero
+			Arrays.fill(parity.array(), 0, parityLength, (byte) 0);
+			parity.clear();
+			
+			checksum.reset();
+			parityPacket.flip();
+			parityPacket.position(8);
+			checksum.update(parityPacket);
+			parityPacket.putLong(0, checksum.getValue());
+			parityPacket.position(0);
+			if (pacer != null) {
+				pace(parityPacket.remaining());
+			}
+			send(parityPacket);
+			metrics.onPacketSent(false);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Parity of group " + group + " with size: " + parityLength);
+		}
+		parityLength = 0;
+	}
+	
+	private void sendWindowPacket(int seqNum, boolean isRetransmission) throws IOException {
+		int slot = seqNum % windowSize;
+		if (pacer != null) {
+			pace(windowPacketLengths[slot]);
+		}
+		if (isMemoryMapped) {
+			ByteBuffer[] gatherBuffers = windowGatherBuffers[slot];
+			int payloadOffset = gatherBuffers[1].limit() - (windowPacketLengths[slot] - SIZE_DATA_HEADER);
+			gatherBuffers[0].position(0);
+			gatherBuffers[1].position(payloadOffset);
+			// A gathering write on a DatagramChannel sends a single datagram
+			send(gatherBuffers);
+		} else {
+			ByteBuffer packet = windowPackets[slot];
+			packet.limit(windowPacketLengths[slot]);
+			packet.position(0);
+			send(packet);
+		}
+		windowSentTimes[slot] = System.nanoTime();
+		windowRetransmitted[slot] = windowRetransmitted[slot] || isRetransmission;
+		metrics.onPacketSent(isRetransmission);
+	}
+	
+	private void send(ByteBuffer packet) throws IOException {
 		try {
-			while ((numBytesRead = sourceBufferedInputStream.read(data)) != -1) {
-				dataBuffer.clear();
-				// reserve space for checksum
-				dataBuffer.putLong(0);
-				dataBuffer.putInt(seqNum);
-				dataBuffer.putInt(numBytesRead);
-				dataBuffer.put(data, 0, data.length); // TODO: try
-				
-				crc.reset();
-				crc.update(dataByteArray, 8, dataByteArray.length-8);
-				long chksum = crc.getValue();
-				dataBuffer.rewind();
-				dataBuffer.putLong(chksum);
-				
-				pkt = new DatagramPacket(dataByteArray, dataByteArray.length, addr);
-				
-				// Debug output
-				log.fine("Packet " + seqNum + " with data of size: " + numBytesRead);
-				log.fine("Sent CRC:" + chksum);
-				
-				try {
-					sk.send(pkt);
-					waitAck(seqNum, pkt);			
-					seqNum += 1;
-				} catch (IOException e) {
-					System.out.println("Unable to send pkt from the DatagramSocket!");
+			// Nothing is written while the socket send buffer is full
+			while (channel.write(packet) == 0) {
+				Thread.onSpinWait();
+			}
+		} catch (PortUnreachableException e) {
+			// The receiver is not up yet, the packet is lost
+		}
+	}
+	
+	private void send(ByteBuffer[] packet) throws IOException {
+		try {
+			while (channel.write(packet) == 0) {
+				Thread.onSpinWait();
+			}
+		} catch (PortUnreachableException e) {
+			// The receiver is not up yet, the packet is lost
+		}
+	}
+	
+	/**
+	 * Waits at most timeout ns for an ACK to arrive in ackBuffer.
+	 * Returns false if nothing has been received.
+	 */
+	private boolean receiveAck(long timeout) throws IOException {
+		ackBuffer.clear();
+		try {
+			if (channel.read(ackBuffer) > 0) {
+				return true;
+			}
+			if (timeout < 1000000) {
+				// Below the resolution of select, e.g. the gap between two paced packets
+				long deadline = System.nanoTime() + timeout;
+				while (System.nanoTime() - deadline < 0) {
+					if (channel.read(ackBuffer) > 0) {
+						return true;
+					}
+					Thread.onSpinWait();
 				}
+				return false;
 			}
-		} catch (IOException e) {
-			System.out.println("Unable to read data from BufferedInputStream!");
+			if (poller != null) {
+				poller.await(pollerKey, timeout);
+			} else {
+				if (selector == null) {
+					selector = Selector.open();
+					channel.register(selector, SelectionKey.OP_READ);
+				}
+				selector.select(timeout / 1000000);
+				selector.selectedKeys().clear();
+			}
+			return channel.read(ackBuffer) > 0;
+		} catch (PortUnreachableException e) {
+			return false;
 		}
 	}
 	
-	private void waitAck(int seqNum, DatagramPacket pkt) throws IOException {
-		sk.setSoTimeout(1); 
+	/**
+	 * Returns the RTT sample of the packet, or -1 if it has been retransmitted.
+	 */
+	private long addRttSample(int seqNum) {
+		int slot = seqNum % windowSize;
+		if (windowRetransmitted[slot]) {
+			return -1;
+		}
+		long rtt = System.nanoTime() - windowSentTimes[slot];
+		rttEstimator.addSample(rtt);
+		metrics.addRttSample(rtt, rttEstimator.getSmoothedRtt());
+		return rtt;
+	}
+	
+	/**
+	 * Waits until the token bucket lets a packet of the given length go, and takes its tokens.
+	 */
+	private void pace(int length) {
+		long now = System.nanoTime();
+		long delay;
+		while ((delay = pacer.getDelay(now)) > 0) {
+			if (delay >= 1000000) {
+				LockSupport.parkNanos(delay);
+			} else {
+				Thread.onSpinWait();
+			}
+			now = System.nanoTime();
+		}
+		pacer.consume(length, now);
+	}
+	
+	/**
+	 * Sets the pacing rate to the lower of the rate limit of the stream and, with pacing,
+	 * the congestion window over the smoothed RTT.
+	 */
+	private void updatePacingRate() {
+		double rate = rateLimit > 0 ? rateLimit : Double.POSITIVE_INFINITY;
+		long smoothedRtt = rttEstimator.getSmoothedRtt();
+		if (isPaced && smoothedRtt > 0) {
+			double gain = congestionController.isSlowStart() ? SLOW_START_PACING_GAIN : PACING_GAIN;
+			int window = Math.min(windowSize, congestionController.getWindow());
+			rate = Math.min(rate, gain * window * dataPacketSize * 1e9 / smoothedRtt);
+		}
+		pacer.setRate(rate);
+	}
+	
+	/**
+	 * Returns the time until the earliest retransmission timer in the window expires (ns),
+	 * to be used as the ACK timeout.
+	 */
+	private long getTimerDelay(int base) {
+		long earliestSentTime;
+		if (transferMode == MODE_GO_BACK_N) {
+			earliestSentTime = windowSentTimes[base % windowSize];
+		} else {
+			earliestSentTime = Long.MAX_VALUE;
+			for (int i = base; i < seqNum; i++) {
+				int slot = i % windowSize;
+				if (!windowAcked[slot]) {
+					earliestSentTime = Math.min(earliestSentTime, windowSentTimes[slot]);
+				}
+			}
+		}
+		long delay = earliestSentTime + rttEstimator.getTimeout() - System.nanoTime();
+		// Waiting at least 1ms keeps receiveAck in select instead of spinning
+		return Math.max(1000000, delay);
+	}
+	
+	private void resendExpiredPackets(int base) throws IOException {
+		long now = System.nanoTime();
+		long timeout = rttEstimator.getTimeout();
+		boolean isExpired = false;
+		if (transferMode == MODE_GO_BACK_N) {
+			// A single timer for the oldest unacknowledged packet, resend the whole window when it expires
+			if (base < seqNum && now - windowSentTimes[base % windowSize] >= timeout) {
+				isExpired = true;
+				for (int i = base; i < seqNum; i++) {
+					sendWindowPacket(i, true);
+				}
+			}
+		} else {
+			// Every packet has its own timer, only resend those that expired
+			for (int i = base; i < seqNum; i++) {
+				int slot = i % windowSize;
+				if (!windowAcked[slot] && now - windowSentTimes[slot] >= timeout) {
+					isExpired = true;
+					sendWindowPacket(i, true);
+				}
+			}
+		}
+		if (isExpired) {
+			metrics.onTimeout();
+			rttEstimator.backoff();
+			congestionController.onTimeout();
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Retransmission timeout, RTO is now " + rttEstimator.getTimeout() / 1000 + "us");
+			}
+		}
+	}
+	
+	/**
+	 * Returns the sequence number carried by the ACK packet in ackBuffer, or Integer.MIN_VALUE if it is corrupted.
+	 */
+	private int readAck() {
+		int ackSeqNum = decodeAck(ackBuffer, checksum, crc);
+		if (ackSeqNum == Integer.MIN_VALUE) {
+			log.fine("ack packet is corrupted!");
+			metrics.onCorruptPacket();
+			return Integer.MIN_VALUE;
+		}
+		metrics.onAckReceived();
+		lastAckTime = System.nanoTime();
+		return ackSeqNum;
+	}
+	
+	/**
+	 * Returns the sequence number of the ACK packet received into ack up to its position, or Integer.MIN_VALUE
+	 * if it is too short or corrupted. The ACKs of the meta-data and the FIN are checked with crc, the others
+	 * with checksum. Leaves ack flipped. Shared with TransferBenchmark.
+	 */
+	static int decodeAck(ByteBuffer ack, Checksum checksum, CRC32 crc) {
+		if (ack.position() < SIZE_ACK_PACKET) {
+			return Integer.MIN_VALUE;
+		}
+		int ackSeqNum = ack.getInt(SIZE_CHECKSUM);
+		Checksum ackChecksum = ackSeqNum == ACK_METADATA || ackSeqNum == ACK_FIN ? crc : checksum;
+		ackChecksum.reset();
+		ack.flip();
+		ack.position(SIZE_CHECKSUM);
+		ackChecksum.update(ack);
+		return ackChecksum.getValue() == ack.getLong(0) ? ackSeqNum : Integer.MIN_VALUE;
+	}
+	
+	/**
+	 * Returns true if bit i of the SACK bitmap of the ACK is set, i.e. packet (cumulative + 1 + i) has been received.
+	 */
+	static boolean isSacked(ByteBuffer ack, int i) {
+		return (ack.get(SIZE_CHECKSUM + SIZE_SEQNUM + i / 8) & (1 << (i % 8))) != 0;
+	}
+	
+	/**
+	 * Stop-and-wait until the packet is ACKed, the ACK is left in ackBuffer.
+	 * Returns false if the receiver reported that the whole file had already been received.
+	 */
+	private boolean waitAck(int seqNum, ByteBuffer packet) throws IOException {
 		boolean isAck = false;
+		boolean isRetransmitted = false;
+		long sentTime = System.nanoTime();
 		
 		while(!isAck) {
-			byte[] ackByteArray = new byte[SIZE_ACK_PACKET];
-			ByteBuffer ackBuffer = ByteBuffer.wrap(ackByteArray);
-			DatagramPacket ackPkt = new DatagramPacket(ackByteArray, SIZE_ACK_PACKET);
-			ackPkt.setLength(SIZE_ACK_PACKET);
-			try {
-				sk.receive(ackPkt);
-				if (ackPkt.getLength() < SIZE_ACK_PACKET) {
-					log.fine("Corrupted Packet due to shorter length!");
-					continue;
-				} else {
-					ackBuffer.rewind();
-					long chksum = ackBuffer.getLong();
-					int ackSeqNum = ackBuffer.getInt();
-					crc.reset();
-					crc.update(ackByteArray, 8, ackPkt.getLength()-8);
-					if (crc.getValue() != chksum) {
-						log.fine("ack packet " + seqNum + " is corrupted!");
-						continue;
-					} else {
-						if (ackSeqNum == seqNum || ackSeqNum == -1) {
-							isAck = true;
-							log.fine("ACK " + seqNum);
-						} 
+			long delay = sentTime + rttEstimator.getTimeout() - System.nanoTime();
+			if (receiveAck(delay)) {
+				int ackSeqNum = readAck();
+				if (ackSeqNum == -1) {
+					return false;
+				} else if (ackSeqNum == seqNum) {
+					isAck = true;
+					log.fine("ACK " + seqNum);
+					if (!isRetransmitted) {
+						long rtt = System.nanoTime() - sentTime;
+						rttEstimator.addSample(rtt);
+						metrics.addRttSample(rtt, rttEstimator.getSmoothedRtt());
 					}
-				}
-				
-			} catch (SocketTimeoutException e) {
+				} 
+			} else if (System.nanoTime() - sentTime >= rttEstimator.getTimeout()) {
 				//System.out.println("Socket time out for ACK: " + seqNum);
-				sk.send(pkt);
-				// Recursive call
-				//waitAck(seqNum, pkt);
-				sk.setSoTimeout(1);
+				checkReceiverTimeout();
+				packet.rewind();
+				send(packet);
+				metrics.onPacketSent(true);
+				metrics.onTimeout();
+				sentTime = System.nanoTime();
+				isRetransmitted = true;
+				rttEstimator.backoff();
 			}
 		}
+		return true;
+	}
+	
+	/**
+	 * Sends the range from the meta-data to the last ACK, and closes the sender.
+	 */
+	public void send() throws IOException {
+		try {
+			sendMetaData();
+			sendData();
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * Releases the socket, the window and the source file, and stops the metrics.
+	 */
+	public void close() throws IOException {
+		metrics.close();
+		if (isBufferPoolShared && windowPackets != null) {
+			for (ByteBuffer packet : windowPackets) {
+				bufferPool.release(packet);
+			}
+			if (parityPacket != null) {
+				bufferPool.release(parityPacket);
+			}
+			windowPackets = null;
+		}
+		if (selector != null) {
+			selector.close();
+		}
+		if (pollerKey != null) {
+			poller.cancel(pollerKey);
+		}
+		channel.close();
+		sourceChannel.close();
 	}
 	
 	public static void main(String[] args) {
-		if (args.length != 4) {
-			System.err.println("Usage: FileSender <host> <port> <src_file> <dest_file>");
+		if (args.length < 4) {
+			System.err.println("Usage: FileSender <host> <port> <src_file> <dest_file> " + TransferOptions.USAGE);
 			System.exit(-1);
 		}
 		
@@ -203,17 +1468,111 @@ public class FileSender {
 		int port = Integer.parseInt(args[1]);
 		String srcFilePath = args[2];
 		String destFilePath = args[3];
+		TransferOptions options = null;
+		try {
+			options = TransferOptions.parse(args, 4);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+		
+		if (getStreamCount(Paths.get(srcFilePath).toFile().length(), options) == 1) {
+			try {
+				FileSender fs = new FileSender(host, port, srcFilePath, destFilePath, options);
+				fs.send();
+			} catch (IOException e) {
+				System.out.println("IO Exception: " + e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		
+		try {
+			sendParallel(host, port, srcFilePath, destFilePath, options);
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Splits the source file into getStreamCount() ranges and sends them at the same time, each
+	 * from its own socket and thread. Throws the first error of a stream once all of them are done.
+	 */
+	public static void sendParallel(String host, int port, String srcFilePath, String destFilePath,
+			TransferOptions options) throws IOException {
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		IOException[] error = new IOException[1];
+		for (FileSender fs : createStreams(host, port, srcFilePath, destFilePath, options)) {
+			Thread thread = new Thread(() -> {
+				try {
+					fs.send();
+				} catch (IOException e) {
+					synchronized (error) {
+						if (error[0] == null) {
+							error[0] = e;
+						}
+					}
+				}
+			}, "FileSender-" + threads.size());
+			threads.add(thread);
+			thread.start();
+		}
 		
-		FileSender fs;
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		synchronized (error) {
+			if (error[0] != null) {
+				throw error[0];
+			}
+		}
+	}
+	
+	/**
+	 * Number of ranges the file is sent in, options.getStreamCount() unless the ranges would not fit in the sequence numbers.
+	 */
+	public static int getStreamCount(long fileSize, TransferOptions options) {
+		int dataSize = options.getDataPacketSize() - SIZE_DATA_HEADER;
+		long maxRangeSize = getMaxRangeSize(dataSize, options.getFecDataShards(), options.getFecParityShards());
+		return (int) Math.max(options.getStreamCount(), (fileSize + maxRangeSize - 1) / maxRangeSize);
+	}
+	
+	/**
+	 * Creates a sender for each of the getStreamCount() ranges of the source file, with a new session ID.
+	 */
+	public static ArrayList<FileSender> createStreams(String host, int port, String srcFilePath, String destFilePath,
+			TransferOptions options) throws IOException {
+		long fileSize = Paths.get(srcFilePath).toFile().length();
+		int streamCount = getStreamCount(fileSize, options);
+		long rangeSize = Math.max(1, (fileSize + streamCount - 1) / streamCount);
+		int sessionId = newSessionId();
+		
+		ArrayList<FileSender> streams = new ArrayList<FileSender>();
 		try {
-			fs = new FileSender(host, port, srcFilePath, destFilePath);
-			fs.sendMetaData();
-			fs.sendData();
-		} catch (SocketException e) {
-			System.out.println("Socket Exception!");
+			// An empty file still needs a single stream to create it at the receiver
+			for (long rangeOffset = 0; rangeOffset < fileSize || streams.isEmpty(); rangeOffset += rangeSize) {
+				streams.add(new FileSender(host, port, srcFilePath, destFilePath, options, sessionId, rangeOffset, rangeSize));
+			}
 		} catch (IOException e) {
-			System.out.println("IO Exception!");
+			for (FileSender fs : streams) {
+				fs.close();
+			}
+			throw e;
 		}
+		return streams;
+	}
+	
+	/**
+	 * Random session ID, so that a restarted sender is not mistaken for an earlier session.
+	 */
+	public static int newSessionId() {
+		return ThreadLocalRandom.current().nextInt();
 	}
 	
 	// Obtained from skeleton code
@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct packet buffers, carved out of a few large direct allocations (slabs).
+ * 
+ * Direct buffers can be handed to DatagramChannel and FileChannel without being
+ * copied into a temporary direct buffer first. Acquiring and releasing buffers
+ * does not allocate as long as the pool is not exhausted, in which case a new
+ * buffer is allocated and kept once it is released. The pool is thread-safe, so that
+ * the senders of a TransferService can share one.
+ */
+public class PacketBufferPool {
+	// Largest direct allocation, a pool of a large window of large packets takes several
+	public static final int MAX_SLAB_SIZE = 1 << 30;
+	
+	private final int bufferSize;
+	private final ArrayDeque<ByteBuffer> freeBuffers;
+	
+	public PacketBufferPool(int count, int bufferSize) {
+		this.bufferSize = bufferSize;
+		freeBuffers = new ArrayDeque<ByteBuffer>(count * 2);
+		int buffersPerSlab = Math.max(1, MAX_SLAB_SIZE / bufferSize);
+		for (int first = 0; first < count; first += buffersPerSlab) {
+			int slabCount = Math.min(buffersPerSlab, count - first);
+			ByteBuffer slab = ByteBuffer.allocateDirect(slabCount * bufferSize);
+			for (int i = 0; i < slabCount; i++) {
+				slab.limit((i + 1) * bufferSize);
+				slab.position(i * bufferSize);
+				freeBuffers.push(slab.slice());
+			}
+		}
+	}
+	
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+	
+	public synchronized void release(ByteBuffer buffer) {
+		freeBuffers.push(buffer);
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
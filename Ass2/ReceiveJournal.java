@@ -0,0 +1,164 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Byte ranges of a partially received file that are known to be on disk,
+ * saved next to the file so that an interrupted transfer can be resumed.
+ * 
+ * Journal file: <destination file>.journal
+ * 8 bytes: File size (long)
+ * 8 bytes: Source file version (long) - the journal is only used for the same version of the source
+ * 4 bytes: Number of ranges (int)
+ * 16 bytes per range: start (long), end (long) - sorted and not overlapping
+ * 
+ * The journal is written to a temporary file which then replaces the old one,
+ * so a crash while saving leaves the previous journal intact.
+ */
+public class ReceiveJournal {
+	public static final String SUFFIX = ".journal";
+	
+	private Path path;
+	private long fileSize;
+	private long fileVersion;
+	// Sorted ranges as {start, end}, adjacent ranges are merged
+	private ArrayList<long[]> ranges;
+	
+	public ReceiveJournal(String destFilePath, long fileSize, long fileVersion) {
+		path = Paths.get(destFilePath + SUFFIX);
+		this.fileSize = fileSize;
+		this.fileVersion = fileVersion;
+		ranges = new ArrayList<long[]>();
+	}
+	
+	/**
+	 * Reads the journal left by an earlier transfer of the same file.
+	 * Returns false if there is none, if it belongs to another file, or if it is damaged.
+	 */
+	public boolean load() throws IOException {
+		ranges.clear();
+		try (InputStream in = Files.newInputStream(path)) {
+			DataInputStream data = new DataInputStream(in);
+			if (data.readLong() != fileSize || data.readLong() != fileVersion) {
+				return false;
+			}
+			int count = data.readInt();
+			if (count < 0) {
+				return false;
+			}
+			for (int i = 0; i < count; i++) {
+				long start = data.readLong();
+				long end = data.readLong();
+				if (start < 0 || start >= end || end > fileSize) {
+					ranges.clear();
+					return false;
+				}
+				add(start, end);
+			}
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (EOFException e) {
+			// Cut short, the ranges read so far cannot be trusted either
+			ranges.clear();
+			return false;
+		}
+	}
+	
+	public void save() throws IOException {
+		save(getRanges());
+	}
+	
+	/**
+	 * Saves ranges taken with getRanges() earlier, e.g. from another thread once the data is on disk.
+	 */
+	public void save(long[] ranges) throws IOException {
+		Path tempPath = Paths.get(path + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tempPath)) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeLong(fileSize);
+			data.writeLong(fileVersion);
+			data.writeInt(ranges.length / 2);
+			for (long value : ranges) {
+				data.writeLong(value);
+			}
+			data.flush();
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Copy of the ranges, start and end of every range one after the other.
+	 */
+	public long[] getRanges() {
+		long[] copy = new long[ranges.size() * 2];
+		for (int i = 0; i < ranges.size(); i++) {
+			copy[i * 2] = ranges.get(i)[0];
+			copy[i * 2 + 1] = ranges.get(i)[1];
+		}
+		return copy;
+	}
+	
+	public void delete() throws IOException {
+		Files.deleteIfExists(path);
+	}
+	
+	/**
+	 * Records that the bytes from start (inclusive) to end (exclusive) are on disk.
+	 */
+	public void add(long start, long end) {
+		start = Math.max(start, 0);
+		end = Math.min(end, fileSize);
+		if (start >= end) {
+			return;
+		}
+		// First range that ends at or after start, everything before it stays as it is
+		int i = 0;
+		while (i < ranges.size() && ranges.get(i)[1] < start) {
+			i++;
+		}
+		// Swallow the ranges that overlap or touch the new one
+		while (i < ranges.size() && ranges.get(i)[0] <= end) {
+			long[] range = ranges.remove(i);
+			start = Math.min(start, range[0]);
+			end = Math.max(end, range[1]);
+		}
+		ranges.add(i, new long[] { start, end });
+	}
+	
+	/**
+	 * Number of bytes on disk from offset onwards before the first missing byte, at most limit.
+	 */
+	public long getPresentPrefix(long offset, long limit) {
+		for (long[] range : ranges) {
+			if (range[0] <= offset && offset < range[1]) {
+				return Math.min(range[1] - offset, limit);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Number of bytes on disk from start (inclusive) to end (exclusive).
+	 */
+	public long getPresentSize(long start, long end) {
+		long size = 0;
+		for (long[] range : ranges) {
+			size += Math.max(0, Math.min(end, range[1]) - Math.max(start, range[0]));
+		}
+		return size;
+	}
+	
+	public long getPresentSize() {
+		return getPresentSize(0, fileSize);
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Set of received sequence numbers, stored as a bitmap of long words that
+ * slides forward with the first missing sequence number.
+ * 
+ * Everything below the first missing sequence number is received and takes
+ * no space, so the bitmap only has to cover the receiver window instead of
+ * the whole file. It grows if a sequence number beyond it is added.
+ */
+public class ReceivedSet {
+	private static final int BITS_PER_WORD = 64;
+	
+	// Ring buffer of words, word w of the sequence space is at words[w % words.length]
+	private long[] words;
+	// First sequence number that has not been received
+	private long firstMissing;
+	
+	/**
+	 * Creates a set in which every sequence number below firstMissing is received,
+	 * with space for capacity sequence numbers beyond it.
+	 */
+	public ReceivedSet(long firstMissing, int capacity) {
+		this.firstMissing = firstMissing;
+		words = new long[capacity / BITS_PER_WORD + 2];
+	}
+	
+	public boolean contains(long seqNum) {
+		if (seqNum < firstMissing) {
+			return true;
+		}
+		long word = seqNum / BITS_PER_WORD;
+		if (word - firstMissing / BITS_PER_WORD >= words.length) {
+			return false;
+		}
+		return (words[(int) (word % words.length)] & (1L << (seqNum % BITS_PER_WORD))) != 0;
+	}
+	
+	/**
+	 * Returns false if the sequence number has been received before.
+	 */
+	public boolean add(long seqNum) {
+		if (contains(seqNum)) {
+			return false;
+		}
+		long word = seqNum / BITS_PER_WORD;
+		while (word - firstMissing / BITS_PER_WORD >= words.length) {
+			grow();
+		}
+		words[(int) (word % words.length)] |= 1L << (seqNum % BITS_PER_WORD);
+		if (seqNum == firstMissing) {
+			slide();
+		}
+		return true;
+	}
+	
+	public long getFirstMissing() {
+		return firstMissing;
+	}
+	
+	/**
+	 * Moves firstMissing past the received sequence numbers, clearing the words left behind for reuse.
+	 */
+	private void slide() {
+		while (true) {
+			int index = (int) ((firstMissing / BITS_PER_WORD) % words.length);
+			int bit = (int) (firstMissing % BITS_PER_WORD);
+			// Number of consecutive received sequence numbers from firstMissing within this word
+			long run = Long.numberOfTrailingZeros(~(words[index] >>> bit));
+			if (run == 0) {
+				return;
+			}
+			if (bit + run >= BITS_PER_WORD) {
+				// Whole rest of the word is received
+				words[index] = 0;
+				firstMissing += BITS_PER_WORD - bit;
+			} else {
+				firstMissing += run;
+				return;
+			}
+		}
+	}
+	
+	private void grow() {
+		long[] newWords = new long[words.length * 2];
+		long firstWord = firstMissing / BITS_PER_WORD;
+		for (long word = firstWord; word < firstWord + words.length; word++) {
+			newWords[(int) (word % newWords.length)] = words[(int) (word % words.length)];
+		}
+		words = newWords;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Loss-based AIMD congestion control in the style of TCP Reno.
+ * 
+ * Slow start grows the window by one packet per ACKed packet until ssthresh,
+ * then congestion avoidance grows it by one packet per window. A fast
+ * retransmit halves the window, a timeout restarts slow start from 1.
+ */
+public class RenoCongestionController implements CongestionController {
+	public static final int INITIAL_WINDOW = 2;
+	public static final int MIN_SSTHRESH = 2;
+	
+	protected double congestionWindow;
+	protected double slowStartThreshold;
+	
+	public RenoCongestionController() {
+		congestionWindow = INITIAL_WINDOW;
+		slowStartThreshold = Integer.MAX_VALUE;
+	}
+	
+	@Override
+	public void onAck(int ackedPackets, long rtt) {
+		for (int i = 0; i < ackedPackets; i++) {
+			if (congestionWindow < slowStartThreshold) {
+				congestionWindow += 1;
+			} else {
+				congestionWindow += 1 / congestionWindow;
+			}
+		}
+	}
+	
+	@Override
+	public void onLoss() {
+		slowStartThreshold = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+		congestionWindow = slowStartThreshold;
+	}
+	
+	@Override
+	public void onTimeout() {
+		slowStartThreshold = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+		congestionWindow = 1;
+	}
+	
+	@Override
+	public int getWindow() {
+		return Math.max(1, (int) congestionWindow);
+	}
+	
+	@Override
+	public boolean isSlowStart() {
+		return congestionWindow < slowStartThreshold;
+	}
+}
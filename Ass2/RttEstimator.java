@@ -0,0 +1,81 @@
+/**
+ * Retransmission timeout estimator based on RFC 6298.
+ * 
+ * SRTT and RTTVAR are updated from every valid RTT sample. Samples of
+ * retransmitted packets are ambiguous and must not be added (Karn's rule).
+ * Every timeout doubles the RTO until the next valid sample arrives, or
+ * until an ACK of new data shows that the path is working again.
+ * All the units are in NANOSECONDS.
+ */
+public class RttEstimator {
+	// Gains from RFC 6298
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+	
+	private final long minTimeout, maxTimeout;
+	private long smoothedRtt, rttVariance;
+	private long timeout, initialTimeout;
+	private boolean hasSample;
+	private int backoffCount;
+	
+	public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		this.initialTimeout = clamp(initialTimeout);
+		this.timeout = this.initialTimeout;
+	}
+	
+	public void addSample(long rtt) {
+		if (!hasSample) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+			hasSample = true;
+		} else {
+			rttVariance = (long) ((1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt));
+			smoothedRtt = (long) ((1 - ALPHA) * smoothedRtt + ALPHA * rtt);
+		}
+		timeout = clamp(smoothedRtt + K * rttVariance);
+		backoffCount = 0;
+	}
+	
+	/**
+	 * Exponential backoff after a retransmission timeout.
+	 */
+	public void backoff() {
+		timeout = clamp(timeout * 2);
+		backoffCount += 1;
+	}
+	
+	/**
+	 * Collapses the backoff once the window moves forward again. Otherwise a
+	 * window that has been retransmitted entirely yields no valid sample
+	 * and keeps the backed-off RTO.
+	 */
+	public void resetBackoff() {
+		if (backoffCount > 0) {
+			timeout = hasSample ? clamp(smoothedRtt + K * rttVariance) : initialTimeout;
+			backoffCount = 0;
+		}
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+	
+	public long getRttVariance() {
+		return rttVariance;
+	}
+	
+	public int getBackoffCount() {
+		return backoffCount;
+	}
+	
+	private long clamp(long value) {
+		return Math.max(minTimeout, Math.min(maxTimeout, value));
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single selector thread waiting for the sockets of many FileSenders at once, see TransferService.
+ * 
+ * A sender that has nothing to read arms the key of its channel and parks, and the poller disarms the key
+ * and unparks it once the channel is readable. Parking does not hold on to a carrier thread like a select
+ * from a virtual thread does, so thousands of transfers can wait on a handful of platform threads. A key is
+ * only armed while its sender is waiting, as a readable channel would otherwise wake the poller again and
+ * again until the sender gets round to reading it.
+ */
+public class SocketPoller implements Runnable {
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean isClosed;
+	
+	/**
+	 * Attachment of a registered channel, the thread waiting for it.
+	 */
+	private static class Waiter {
+		volatile Thread thread;
+		volatile boolean isReady;
+	}
+	
+	public SocketPoller() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, "SocketPoller");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Registers a non-blocking channel, the key is passed to await() and cancel().
+	 */
+	public SelectionKey register(SelectableChannel channel) throws IOException {
+		SelectionKey key = channel.register(selector, 0, new Waiter());
+		selector.wakeup();
+		return key;
+	}
+	
+	/**
+	 * Parks the current thread until the channel of key is readable, at most timeout ns.
+	 * Returns false on timeout, which may still leave a datagram that has just arrived.
+	 */
+	public boolean await(SelectionKey key, long timeout) {
+		Waiter waiter = (Waiter) key.attachment();
+		waiter.thread = Thread.currentThread();
+		waiter.isReady = false;
+		key.interestOps(SelectionKey.OP_READ);
+		// The new interest only counts from the next select
+		selector.wakeup();
+		long deadline = System.nanoTime() + timeout;
+		long remaining = timeout;
+		while (!waiter.isReady && remaining > 0 && !isClosed) {
+			LockSupport.parkNanos(this, remaining);
+			remaining = deadline - System.nanoTime();
+		}
+		if (!waiter.isReady && key.isValid()) {
+			key.interestOps(0);
+		}
+		return waiter.isReady;
+	}
+	
+	/**
+	 * Deregisters the channel of key, before it is closed.
+	 */
+	public void cancel(SelectionKey key) {
+		key.cancel();
+		// Lets the selector release the channel
+		selector.wakeup();
+	}
+	
+	public void run() {
+		try {
+			while (!isClosed) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					key.interestOps(0);
+					Waiter waiter = (Waiter) key.attachment();
+					waiter.isReady = true;
+					LockSupport.unpark(waiter.thread);
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!isClosed) {
+				System.out.println("Socket poller failed: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Stops the poller thread, waiting senders time out.
+	 */
+	public void close() throws IOException {
+		isClosed = true;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+	}
+}
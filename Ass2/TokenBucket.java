@@ -0,0 +1,69 @@
+/**
+ * Token bucket pacing the packets of a FileSender at a rate in bytes per second.
+ * 
+ * The bucket holds the bytes of GRANULARITY at the current rate, but at least minBurst
+ * bytes, so that a window leaves as evenly spaced packets instead of a single burst
+ * that overflows the socket buffers on the way. A packet may go as soon as the bucket
+ * is not empty and may take it below zero, the next one then waits until it has been
+ * refilled, which keeps the average rate exact for packets of any size.
+ * All the times are in NANOSECONDS.
+ */
+public class TokenBucket {
+	// Longest burst at the current rate, the precision of the timers of the sender
+	public static final long GRANULARITY = 100000;
+	
+	private final long minBurst;
+	// Bytes per nanosecond, infinite for no limit
+	private double rate;
+	private double capacity, tokens;
+	private long lastRefillTime;
+	
+	public TokenBucket(double rate, long minBurst) {
+		this.minBurst = minBurst;
+		lastRefillTime = System.nanoTime();
+		setRate(rate);
+		tokens = capacity;
+	}
+	
+	/**
+	 * Changes the rate (bytes per second), Double.POSITIVE_INFINITY for no limit.
+	 */
+	public void setRate(double rate) {
+		refill(System.nanoTime());
+		this.rate = rate / 1e9;
+		capacity = Math.max(minBurst, this.rate * GRANULARITY);
+		tokens = Math.min(tokens, capacity);
+	}
+	
+	/**
+	 * Returns the rate in bytes per second.
+	 */
+	public double getRate() {
+		return rate * 1e9;
+	}
+	
+	/**
+	 * Returns the time until the next packet may be sent, 0 if it may go now.
+	 */
+	public long getDelay(long now) {
+		refill(now);
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate);
+	}
+	
+	/**
+	 * Takes the tokens of a packet that is sent now.
+	 */
+	public void consume(int bytes, long now) {
+		refill(now);
+		tokens -= bytes;
+	}
+	
+	private void refill(long now) {
+		if (Double.isInfinite(rate)) {
+			tokens = capacity;
+		} else {
+			tokens = Math.min(capacity, tokens + (now - lastRefillTime) * rate);
+		}
+		lastRefillTime = now;
+	}
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Benchmarks of the hot paths of FileSender and FileReceiver, in plain Java so that
+ * they run wherever the transfer itself runs.
+ * 
+ * Micro benchmarks repeat an operation for warmup rounds and measured rounds of a
+ * fixed time each, and report the best round in operations and MB per second, along
+ * with the bytes allocated per operation.
+ * 
+ * Macro benchmarks send a file through an in-process UnreliNet on the loopback
+ * interface for every combination of file size, loss rate and window size. They
+ * report the median throughput of the runs, and the bytes allocated by the sender
+ * and the receiver per MB of the file. Options that are not the benchmark's own
+ * are passed on to the sender, e.g. "sr packet=8000".
+ */
+public class TransferBenchmark {
+	public static final String USAGE = "[micro|macro|all] [sizes=<bytes>,...] [loss=<rate>,...] [windows=<n>,...] [runs=<n>] [time=<ms>] [sender options ...]";
+	
+	// Rounds of a micro benchmark before the measured ones, for the JIT compiler
+	public static final int WARMUP_ROUNDS = 3;
+	public static final int MEASURED_ROUNDS = 5;
+	// Operations between two looks at the clock
+	public static final int BATCH_SIZE = 1000;
+	// Longest time a single transfer may take (ms)
+	public static final int TRANSFER_TIMEOUT = 120000;
+	
+	/**
+	 * Operation of a micro benchmark, returns something computed from its result so that it cannot be optimized away.
+	 */
+	private interface Operation {
+		long run() throws Exception;
+	}
+	
+	private static com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	// Results of the operations end up here
+	private static volatile long sink;
+	
+	private String benchmarks = "all";
+	private long[] fileSizes = { 1 << 20, 16 << 20 };
+	private double[] lossRates = { 0, 0.01, 0.05 };
+	private int[] windowSizes = { 16, 64 };
+	private int runs = 3;
+	private long roundTime = 500;
+	private ArrayList<String> senderArgs = new ArrayList<String>();
+	
+	public static void main(String[] args) throws Exception {
+		TransferBenchmark benchmark = new TransferBenchmark();
+		try {
+			benchmark.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: TransferBenchmark " + USAGE);
+			System.exit(-1);
+		}
+		if (benchmark.benchmarks.equals("micro") || benchmark.benchmarks.equals("all")) {
+			benchmark.runMicro();
+		}
+		if (benchmark.benchmarks.equals("macro") || benchmark.benchmarks.equals("all")) {
+			benchmark.runMacro();
+		}
+	}
+	
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator == -1) {
+				if (arg.equals("micro") || arg.equals("macro") || arg.equals("all")) {
+					benchmarks = arg;
+				} else {
+					senderArgs.add(arg);
+				}
+				continue;
+			}
+			String key = arg.substring(0, separator).toLowerCase();
+			String[] values = arg.substring(separator + 1).split(",");
+			try {
+				switch (key) {
+				case "sizes":
+					fileSizes = Arrays.stream(values).mapToLong(TransferOptions::parseSize).toArray();
+					break;
+				case "loss":
+					lossRates = Arrays.stream(values).mapToDouble(Double::parseDouble).toArray();
+					break;
+				case "windows":
+					windowSizes = Arrays.stream(values).mapToInt(Integer::parseInt).toArray();
+					break;
+				case "runs":
+					runs = Integer.parseInt(values[0]);
+					break;
+				case "time":
+					roundTime = Long.parseLong(values[0]);
+					break;
+				default:
+					senderArgs.add(arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + arg.substring(separator + 1));
+			}
+		}
+		// Fail early on bad sender options
+		TransferOptions.parse(senderArgs.toArray(new String[0]), 0);
+	}
+	
+	private void runMicro() throws Exception {
+		System.out.println("Benchmark                          ops/s       MB/s   B/op");
+		Random random = new Random(2105);
+		for (int packetSize : new int[] { FileSender.SIZE_DATA_PACKET, 8000 }) {
+			ByteBuffer packet = ByteBuffer.allocateDirect(packetSize);
+			byte[] data = new byte[packetSize];
+			random.nextBytes(data);
+			packet.put(data);
+			packet.flip();
+			
+			measure("checksum crc32 " + packetSize, packetSize, checksumOperation(new CRC32(), packet));
+			measure("checksum crc32c " + packetSize, packetSize, checksumOperation(new CRC32C(), packet));
+			measure("checksum adler32 " + packetSize, packetSize, checksumOperation(new Adler32(), packet));
+			MessageDigest digest = Checksums.createDigest(Checksums.DIGEST_SHA256);
+			measure("digest sha-256 " + packetSize, packetSize, () -> {
+				packet.position(FileSender.SIZE_DATA_HEADER);
+				digest.update(packet);
+				return packet.position();
+			});
+			measure("encode data packet " + packetSize, packetSize, encodeOperation(new CRC32C(), packet));
+			measure("decode data packet " + packetSize, packetSize, decodeOperation(new CRC32C(), packet));
+		}
+		measure("ack encode and decode", FileSender.SIZE_ACK_PACKET, ackOperation(new CRC32C()));
+		System.out.println();
+	}
+	
+	private static Operation checksumOperation(Checksum checksum, ByteBuffer packet) {
+		return () -> {
+			checksum.reset();
+			packet.position(FileSender.SIZE_CHECKSUM);
+			checksum.update(packet);
+			return checksum.getValue();
+		};
+	}
+	
+	/**
+	 * Header and checksum of a data packet whose data is already in place, with FileSender.putDataHeader.
+	 */
+	private static Operation encodeOperation(Checksum checksum, ByteBuffer packet) {
+		int[] seqNum = { 0 };
+		return () -> {
+			packet.clear();
+			return FileSender.putDataHeader(packet, ++seqNum[0], 42, packet.capacity() - FileSender.SIZE_DATA_HEADER, checksum);
+		};
+	}
+	
+	/**
+	 * Header parsing and checksum verification of a data packet, as in FileReceiver.waitForPacket.
+	 */
+	private static Operation decodeOperation(Checksum checksum, ByteBuffer packet) {
+		return () -> {
+			packet.position(0);
+			long chksum = packet.getLong();
+			int seqNum = packet.getInt();
+			int sessionId = packet.getInt();
+			boolean isValid = FileReceiver.isChecksumValid(packet, chksum, checksum);
+			int attachedDataSize = packet.getInt();
+			return (isValid ? 1 : 0) + seqNum + sessionId + attachedDataSize;
+		};
+	}
+	
+	/**
+	 * SACK bitmap of a window with holes built with FileReceiver.putAck, then checked and walked
+	 * with FileSender.decodeAck and isSacked.
+	 */
+	private static Operation ackOperation(Checksum checksum) {
+		ReceivedSet received = new ReceivedSet(1, 256);
+		for (int seqNum = 2; seqNum < 256; seqNum++) {
+			if (seqNum % 7 != 0) {
+				received.add(seqNum);
+			}
+		}
+		ByteBuffer ack = ByteBuffer.allocateDirect(FileSender.SIZE_ACK_PACKET);
+		CRC32 crc = new CRC32();
+		return () -> {
+			FileReceiver.putAck(ack, 0, received);
+			FileReceiver.putChecksum(ack, checksum);
+			// As received from the socket
+			ack.position(ack.limit());
+			if (FileSender.decodeAck(ack, checksum, crc) == Integer.MIN_VALUE) {
+				return -1;
+			}
+			int acked = 0;
+			for (int i = 0; i < FileSender.SIZE_SACK_BITMAP * 8; i++) {
+				if (FileSender.isSacked(ack, i)) {
+					acked++;
+				}
+			}
+			return acked;
+		};
+	}
+	
+	private void measure(String name, int bytesPerOperation, Operation operation) throws Exception {
+		double bestRate = 0;
+		double allocation = 0;
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			long result = 0;
+			long operations = 0;
+			long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			long end = start + roundTime * 1000000L;
+			long now;
+			do {
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					result += operation.run();
+				}
+				operations += BATCH_SIZE;
+				now = System.nanoTime();
+			} while (now < end);
+			long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+			sink = result;
+			double rate = operations * 1e9 / (now - start);
+			if (round >= WARMUP_ROUNDS && rate > bestRate) {
+				bestRate = rate;
+				allocation = (double) allocated / operations;
+			}
+		}
+		System.out.println(String.format("%-28s %11.0f %10.1f %6.1f", name, bestRate, bestRate * bytesPerOperation / 1e6, allocation));
+	}
+	
+	private void runMacro() throws Exception {
+		System.out.println("Transfer " + String.join(" ", senderArgs));
+		System.out.println("     size   loss window       MB/s   sender B/MB   receiver B/MB");
+		Path directory = Files.createTempDirectory("TransferBenchmark");
+		try {
+			for (long fileSize : fileSizes) {
+				Path source = directory.resolve("source-" + fileSize);
+				byte[] data = new byte[(int) Math.min(fileSize, 1 << 20)];
+				new Random(fileSize).nextBytes(data);
+				try (OutputStream out = Files.newOutputStream(source)) {
+					for (long written = 0; written < fileSize; written += data.length) {
+						out.write(data, 0, (int) Math.min(data.length, fileSize - written));
+					}
+				}
+				if (fileSize == fileSizes[0]) {
+					// Not reported, the first transfer runs mostly in the interpreter
+					transfer(source, directory.resolve("destination"), 0, windowSizes[0], 0, new long[2]);
+				}
+				for (double lossRate : lossRates) {
+					for (int windowSize : windowSizes) {
+						runTransfers(source, directory.resolve("destination"), fileSize, lossRate, windowSize);
+					}
+				}
+				Files.delete(source);
+			}
+		} finally {
+			Files.deleteIfExists(directory.resolve("destination"));
+			Files.deleteIfExists(directory);
+		}
+	}
+	
+	private void runTransfers(Path source, Path destination, long fileSize, double lossRate, int windowSize) throws Exception {
+		double[] rates = new double[runs];
+		long senderAllocated = 0, receiverAllocated = 0;
+		int failures = 0;
+		for (int run = 0; run < runs; run++) {
+			long[] allocated = new long[2];
+			long elapsed = transfer(source, destination, lossRate, windowSize, run, allocated);
+			if (elapsed < 0 || Files.mismatch(source, destination) != -1) {
+				failures += 1;
+				continue;
+			}
+			rates[run] = fileSize / 1e6 / (elapsed / 1e9);
+			senderAllocated += allocated[0];
+			receiverAllocated += allocated[1];
+		}
+		Arrays.sort(rates);
+		int passed = runs - failures;
+		double megabytes = fileSize / 1e6 * Math.max(1, passed);
+		System.out.println(String.format("%9d %6.3f %6d %10.1f %13.0f %15.0f%s", fileSize, lossRate, windowSize,
+				passed == 0 ? 0 : rates[failures + passed / 2], senderAllocated / megabytes, receiverAllocated / megabytes,
+				failures > 0 ? "   " + failures + " failed" : ""));
+	}
+	
+	/**
+	 * Sends the file once through a new receiver and relay, and returns the time until the sender is done in
+	 * ns, or -1 on timeout or error. allocated receives the bytes allocated by the sender and the receiver.
+	 */
+	private long transfer(Path source, Path destination, double lossRate, int windowSize, int run, long[] allocated) throws Exception {
+		Files.deleteIfExists(destination);
+		Files.deleteIfExists(Paths.get(destination + ReceiveJournal.SUFFIX));
+		int receiverPort;
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			probe.bind(new InetSocketAddress(0));
+			receiverPort = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+		}
+		FileReceiver receiver = new FileReceiver(receiverPort);
+		Thread receiverThread = new Thread(() -> {
+			long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+			receiver.waitForPacket();
+			allocated[1] = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+		}, "FileReceiver");
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+		
+		UnreliNet net = new UnreliNet(0, new InetSocketAddress("localhost", receiverPort));
+		net.setDropRate(lossRate);
+		// The same losses for every configuration in the same run
+		net.setSeed(run);
+		net.start();
+		
+		TransferOptions options = TransferOptions.parse(senderArgs.toArray(new String[0]), 0);
+		options.setWindowSize(windowSize);
+		long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		try {
+			if (options.getStreamCount() == 1) {
+				FileSender sender = new FileSender("localhost", net.getListenPort(), source.toString(), destination.toString(), options);
+				try {
+					sender.sendMetaData();
+					sender.sendData();
+				} finally {
+					sender.close();
+				}
+			} else {
+				// The threads of the streams are not counted
+				FileSender.sendParallel("localhost", net.getListenPort(), source.toString(), destination.toString(), options);
+			}
+			// The sender returns once the receiver has the whole file and its digest matches. The receiver
+			// may still linger for a lost FIN, which is not part of the transfer
+			elapsed = System.nanoTime() - start;
+			allocated[0] = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+			receiverThread.join(TRANSFER_TIMEOUT);
+		} catch (IOException e) {
+			// Counted as a failed run, e.g. a digest mismatch or a receiver that has gone away
+			return -1;
+		} finally {
+			net.close();
+		}
+		if (receiverThread.isAlive()) {
+			// Left behind as a daemon, it gives up on its own once the stream is idle
+			return -1;
+		}
+		receiver.close();
+		return elapsed;
+	}
+}
@@ -0,0 +1,313 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a FileSender or FileReceiver, readable while the transfer is running
+ * through JMX (see TransferMetricsMBean) and a periodic stats line.
+ * 
+ * The counters are only written by the thread of the transfer (diskWrites by the
+ * DiskWriter thread), and are volatile so that the JMX and reporting threads see
+ * them as they go. The metrics of one transfer can add their counts to a total,
+ * e.g. the sessions of a FileReceiver to the metrics of the whole receiver.
+ * 
+ * Stats line, space separated key=value pairs
+ * stats role=<FileSender|FileReceiver> name=<name> elapsed_ms=.. sent=.. retransmitted=.. received=.. duplicates=..
+ * corrupt=.. unexpected=.. acks_sent=.. acks_received=.. timeouts=.. delivered_bytes=.. disk_writes=.. goodput_mbps=.. window=.. streams=..
+ * srtt_us=.. rtt_p50_us=.. rtt_p99_us=..
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+	public static final String DOMAIN = "FileTransfer";
+	// Bucket i of the RTT histogram counts samples from 2^i to 2^(i+1) us, the last one anything longer
+	public static final int RTT_BUCKETS = 25;
+	
+	private String role, name;
+	// Also counts everything counted here, null if there is none
+	private TransferMetrics total;
+	private long startTime;
+	private volatile long packetsSent, packetsRetransmitted, packetsReceived, duplicatesReceived, corruptPacketsDropped;
+	private volatile long unexpectedPacketsDropped;
+	private volatile long acksSent, acksReceived, timeouts, bytesDelivered, diskWrites;
+	private volatile int window, activeStreams;
+	private volatile long smoothedRtt;
+	private AtomicLongArray rttHistogram;
+	private ObjectName objectName;
+	private ScheduledExecutorService reporter;
+	
+	public TransferMetrics(String role, String name) {
+		this(role, name, null);
+	}
+	
+	public TransferMetrics(String role, String name, TransferMetrics total) {
+		this.role = role;
+		this.name = name;
+		this.total = total;
+		startTime = System.nanoTime();
+		rttHistogram = new AtomicLongArray(RTT_BUCKETS);
+	}
+	
+	/**
+	 * Registers the metrics with the platform MBean server as FileTransfer:type=<role>,name=<name>.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(DOMAIN + ":type=" + role + ",name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			System.out.println("Unable to register the metrics of " + name + ": " + e.getMessage());
+			objectName = null;
+		}
+	}
+	
+	/**
+	 * Prints the stats line every interval ms from a daemon thread.
+	 */
+	public void startReporting(long interval) {
+		reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TransferMetrics-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println(getStatsLine()), interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the reports after a last stats line, and unregisters the MBean.
+	 */
+	public void close() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+			System.out.println(getStatsLine());
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// Already gone
+			}
+			objectName = null;
+		}
+	}
+	
+	public void onPacketSent(boolean isRetransmission) {
+		packetsSent++;
+		if (isRetransmission) {
+			packetsRetransmitted++;
+		}
+		if (total != null) {
+			total.onPacketSent(isRetransmission);
+		}
+	}
+	
+	public void onPacketReceived() {
+		packetsReceived++;
+		if (total != null) {
+			total.onPacketReceived();
+		}
+	}
+	
+	public void onDuplicateReceived() {
+		duplicatesReceived++;
+		if (total != null) {
+			total.onDuplicateReceived();
+		}
+	}
+	
+	public void onCorruptPacket() {
+		corruptPacketsDropped++;
+		if (total != null) {
+			total.onCorruptPacket();
+		}
+	}
+	
+	public void onUnexpectedPacket() {
+		unexpectedPacketsDropped++;
+		if (total != null) {
+			total.onUnexpectedPacket();
+		}
+	}
+	
+	public void onAckSent() {
+		acksSent++;
+		if (total != null) {
+			total.onAckSent();
+		}
+	}
+	
+	public void onAckReceived() {
+		acksReceived++;
+		if (total != null) {
+			total.onAckReceived();
+		}
+	}
+	
+	public void onTimeout() {
+		timeouts++;
+		if (total != null) {
+			total.onTimeout();
+		}
+	}
+	
+	public void onDiskWrite() {
+		diskWrites++;
+		if (total != null) {
+			total.onDiskWrite();
+		}
+	}
+	
+	public void addBytesDelivered(long bytes) {
+		bytesDelivered += bytes;
+		if (total != null) {
+			total.addBytesDelivered(bytes);
+		}
+	}
+	
+	public void setWindow(int window) {
+		this.window = window;
+	}
+	
+	public void setActiveStreams(int activeStreams) {
+		this.activeStreams = activeStreams;
+	}
+	
+	/**
+	 * Adds an RTT sample (ns) to the histogram, along with the smoothed RTT after it (ns).
+	 */
+	public void addRttSample(long rtt, long smoothedRtt) {
+		long micros = Math.max(1, rtt / 1000);
+		int bucket = Math.min(RTT_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+		rttHistogram.incrementAndGet(bucket);
+		this.smoothedRtt = smoothedRtt;
+		if (total != null) {
+			total.addRttSample(rtt, smoothedRtt);
+		}
+	}
+	
+	/**
+	 * Upper bound of the histogram bucket holding the given fraction of the samples (us), 0 without samples.
+	 */
+	private long getRttPercentile(double fraction) {
+		long[] histogram = getRttHistogram();
+		long total = 0;
+		for (long count : histogram) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) {
+				return 1L << (i + 1);
+			}
+		}
+		return 1L << RTT_BUCKETS;
+	}
+	
+	public String getStatsLine() {
+		return String.format("stats role=%s name=%s elapsed_ms=%d sent=%d retransmitted=%d received=%d duplicates=%d corrupt=%d"
+				+ " unexpected=%d acks_sent=%d acks_received=%d timeouts=%d delivered_bytes=%d disk_writes=%d goodput_mbps=%.3f window=%d streams=%d"
+				+ " srtt_us=%d rtt_p50_us=%d rtt_p99_us=%d",
+				role, name, getElapsedMillis(), packetsSent, packetsRetransmitted, packetsReceived, duplicatesReceived,
+				corruptPacketsDropped, unexpectedPacketsDropped, acksSent, acksReceived, timeouts, bytesDelivered, diskWrites, getGoodput() * 8 / 1e6, window,
+				activeStreams, getSmoothedRttMicros(), getRttP50Micros(), getRttP99Micros());
+	}
+	
+	public String getRole() {
+		return role;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getElapsedMillis() {
+		return (System.nanoTime() - startTime) / 1000000;
+	}
+	
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+	
+	public long getPacketsRetransmitted() {
+		return packetsRetransmitted;
+	}
+	
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+	
+	public long getDuplicatesReceived() {
+		return duplicatesReceived;
+	}
+	
+	public long getCorruptPacketsDropped() {
+		return corruptPacketsDropped;
+	}
+	
+	public long getUnexpectedPacketsDropped() {
+		return unexpectedPacketsDropped;
+	}
+	
+	public long getAcksSent() {
+		return acksSent;
+	}
+	
+	public long getAcksReceived() {
+		return acksReceived;
+	}
+	
+	public long getTimeouts() {
+		return timeouts;
+	}
+	
+	public long getBytesDelivered() {
+		return bytesDelivered;
+	}
+	
+	public long getDiskWrites() {
+		return diskWrites;
+	}
+	
+	public double getGoodput() {
+		long elapsed = System.nanoTime() - startTime;
+		return elapsed == 0 ? 0 : bytesDelivered * 1e9 / elapsed;
+	}
+	
+	public int getWindow() {
+		return window;
+	}
+	
+	public int getActiveStreams() {
+		return activeStreams;
+	}
+	
+	public long getSmoothedRttMicros() {
+		return smoothedRtt / 1000;
+	}
+	
+	public long getRttP50Micros() {
+		return getRttPercentile(0.5);
+	}
+	
+	public long getRttP99Micros() {
+		return getRttPercentile(0.99);
+	}
+	
+	public long[] getRttHistogram() {
+		long[] histogram = new long[RTT_BUCKETS];
+		for (int i = 0; i < RTT_BUCKETS; i++) {
+			histogram[i] = rttHistogram.get(i);
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Management interface of TransferMetrics, for jconsole and other JMX clients.
+ */
+public interface TransferMetricsMBean {
+	String getRole();
+	
+	long getElapsedMillis();
+	
+	long getPacketsSent();
+	
+	long getPacketsRetransmitted();
+	
+	long getPacketsReceived();
+	
+	long getDuplicatesReceived();
+	
+	long getCorruptPacketsDropped();
+	
+	/**
+	 * Packets of streams the receiver does not know, e.g. early data that overtook its meta-data packet.
+	 */
+	long getUnexpectedPacketsDropped();
+	
+	long getAcksSent();
+	
+	long getAcksReceived();
+	
+	long getTimeouts();
+	
+	/**
+	 * Data bytes that have been ACKed (sender) or written to the file (receiver).
+	 */
+	long getBytesDelivered();
+	
+	/**
+	 * Writes to the file by the receiver, fewer than the packets as contiguous data is written at once.
+	 */
+	long getDiskWrites();
+	
+	/**
+	 * Bytes delivered per second since the transfer started.
+	 */
+	double getGoodput();
+	
+	/**
+	 * Packets the sender may have in flight, the smaller of the window size and the congestion window.
+	 */
+	int getWindow();
+	
+	int getActiveStreams();
+	
+	long getSmoothedRttMicros();
+	
+	long getRttP50Micros();
+	
+	long getRttP99Micros();
+	
+	/**
+	 * Bucket i counts the RTT samples from 2^i to 2^(i+1) microseconds.
+	 */
+	long[] getRttHistogram();
+}
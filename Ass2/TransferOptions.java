@@ -0,0 +1,481 @@
+/**
+ * Tunable settings of a FileSender transfer.
+ * 
+ * Options can be given on the command line after the positional
+ * arguments, either as the legacy [gbn|sr] [window_size] pair or as
+ * option=value pairs, e.g. "sr 64 rto=500 maxrto=10000".
+ */
+public class TransferOptions {
+	public static final String USAGE = "[gbn|sr] [window_size] [rto=<ms>] [minrto=<ms>] [maxrto=<ms>] [cc=reno|vegas|none] [mmap=true|false] [packet=<bytes>] [streams=<n>] [fec=<k>[:<m>]] [compress=none|deflate] [block=<bytes>] [delta=<bytes>] [checksum=crc32c|crc32] [digest=sha-256|none] [stats=<ms>] [jmx=true|false] [rate=<bytes/s>] [pacing=true|false] [sparse=true|false] [zerortt=true|false]";
+	
+	// Blocks are held in memory by both sides until they are complete
+	public static final int MAX_COMPRESSION_BLOCK_SIZE = 16 << 20;
+	public static final int MAX_DELTA_BLOCK_SIZE = 1 << 20;
+	// The receiver keeps state for every packet of the window, it drops the meta-data of larger ones
+	public static final int MAX_WINDOW_SIZE = 1 << 16;
+	// Packets past the cumulative ACK that the SACK bitmap reaches, Selective Repeat would resend anything further out
+	public static final int MAX_SELECTIVE_WINDOW_SIZE = FileSender.SIZE_SACK_BITMAP * 8;
+	
+	private byte transferMode = FileSender.MODE_GO_BACK_N;
+	// Window size of 1 in Go-Back-N behaves exactly like stop-and-wait
+	private int windowSize = 1;
+	// Retransmission timeout before the first RTT sample, and its bounds (ms). The floor is that of Linux,
+	// as delayed ACKs and scheduling delays easily exceed a few ms and would set off spurious retransmissions
+	private long initialTimeout = 200;
+	private long minTimeout = 200;
+	private long maxTimeout = 60000;
+	private String congestionControl = "reno";
+	// Send the data straight from the memory-mapped source file
+	private boolean isMemoryMapped;
+	// Proposed to the receiver, which may accept a smaller size
+	private int dataPacketSize = FileSender.SIZE_DATA_PACKET;
+	// Number of byte ranges of the file sent in parallel, each through its own socket
+	private int streamCount = 1;
+	// Forward error correction: m parity packets after every k data packets, 0 data packets for none
+	private int fecDataShards;
+	private int fecParityShards = 1;
+	// Compression of the data in blocks of compressionBlockSize bytes
+	private String compression = "none";
+	private int compressionBlockSize = 65536;
+	// Block size of delta sync against the file at the destination, 0 for none
+	private int deltaBlockSize;
+	// Checksum of every packet after the meta-data packet, and digest of the whole range checked at the end
+	private byte checksumType = Checksums.CHECKSUM_CRC32C;
+	private byte digestType = Checksums.DIGEST_SHA256;
+	// Interval of the stats line of every stream (ms), 0 for none
+	private long statsInterval;
+	// Register the metrics of every stream as an MBean, which starts the platform MBean server
+	private boolean isJmxEnabled;
+	// Limit of the whole transfer in bytes per second, shared out between the streams, 0 for none
+	private long rateLimit;
+	// Space the packets out at the rate of the congestion window over the RTT instead of sending them in bursts
+	private boolean isPaced;
+	// Send data packets of zero bytes without their data
+	private boolean isSparse = true;
+	// Send the data of small ranges without waiting for the ACK of the meta-data packet
+	private boolean isZeroRtt = true;
+	
+	public static TransferOptions parse(String[] args, int offset) {
+		TransferOptions options = new TransferOptions();
+		for (int i = offset; i < args.length; i++) {
+			String arg = args[i];
+			int separator = arg.indexOf('=');
+			if (separator == -1) {
+				options.parsePositional(arg);
+				continue;
+			}
+			String key = arg.substring(0, separator).toLowerCase();
+			String value = arg.substring(separator + 1);
+			try {
+				options.set(key, value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+			}
+		}
+		// The bounds may come in any order
+		if (options.minTimeout > options.maxTimeout) {
+			throw new IllegalArgumentException("Minimum retransmission timeout must not be above the maximum");
+		}
+		if (options.transferMode == FileSender.MODE_SELECTIVE_REPEAT && options.windowSize > MAX_SELECTIVE_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Selective Repeat window size must be at most " + MAX_SELECTIVE_WINDOW_SIZE);
+		}
+		return options;
+	}
+	
+	/**
+	 * Parses the value of the option key, true or false in any case, and throws an IllegalArgumentException
+	 * for anything else instead of taking it as false. Shared with the options of FileReceiver.
+	 */
+	public static boolean parseBoolean(String key, String value) {
+		if (value.equalsIgnoreCase("true")) {
+			return true;
+		}
+		if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+	}
+	
+	private void parsePositional(String arg) {
+		if (arg.equalsIgnoreCase("gbn")) {
+			transferMode = FileSender.MODE_GO_BACK_N;
+		} else if (arg.equalsIgnoreCase("sr")) {
+			transferMode = FileSender.MODE_SELECTIVE_REPEAT;
+		} else {
+			try {
+				setWindowSize(Integer.parseInt(arg));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+	}
+	
+	private void set(String key, String value) {
+		switch (key) {
+		case "mode":
+			if (!value.equalsIgnoreCase("gbn") && !value.equalsIgnoreCase("sr")) {
+				throw new IllegalArgumentException("Unknown mode: " + value);
+			}
+			parsePositional(value);
+			break;
+		case "window":
+			setWindowSize(Integer.parseInt(value));
+			break;
+		case "rto":
+			setInitialTimeout(Long.parseLong(value));
+			break;
+		case "minrto":
+			setMinTimeout(Long.parseLong(value));
+			break;
+		case "maxrto":
+			setMaxTimeout(Long.parseLong(value));
+			break;
+		case "cc":
+			setCongestionControl(value);
+			break;
+		case "mmap":
+			isMemoryMapped = parseBoolean(key, value);
+			break;
+		case "packet":
+			setDataPacketSize(Integer.parseInt(value));
+			break;
+		case "streams":
+			setStreamCount(Integer.parseInt(value));
+			break;
+		case "fec":
+			int separator = value.indexOf(':');
+			if (separator == -1) {
+				setFec(Integer.parseInt(value), 1);
+			} else {
+				setFec(Integer.parseInt(value.substring(0, separator)), Integer.parseInt(value.substring(separator + 1)));
+			}
+			break;
+		case "compress":
+			setCompression(value);
+			break;
+		case "block":
+			setCompressionBlockSize(Integer.parseInt(value));
+			break;
+		case "delta":
+			setDeltaBlockSize(Integer.parseInt(value));
+			break;
+		case "checksum":
+			checksumType = Checksums.getChecksumId(value);
+			break;
+		case "digest":
+			digestType = Checksums.getDigestId(value);
+			break;
+		case "stats":
+			setStatsInterval(Long.parseLong(value));
+			break;
+		case "jmx":
+			isJmxEnabled = parseBoolean(key, value);
+			break;
+		case "rate":
+			setRateLimit(parseSize(value));
+			break;
+		case "pacing":
+			isPaced = parseBoolean(key, value);
+			break;
+		case "sparse":
+			isSparse = parseBoolean(key, value);
+			break;
+		case "zerortt":
+			isZeroRtt = parseBoolean(key, value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: " + key);
+		}
+	}
+	
+	public byte getTransferMode() {
+		return transferMode;
+	}
+	
+	public void setTransferMode(byte transferMode) {
+		this.transferMode = transferMode;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Window size must be between 1 and " + MAX_WINDOW_SIZE);
+		}
+		this.windowSize = windowSize;
+	}
+	
+	public long getInitialTimeout() {
+		return initialTimeout;
+	}
+	
+	public void setInitialTimeout(long initialTimeout) {
+		if (initialTimeout < 1) {
+			throw new IllegalArgumentException("Retransmission timeout must be at least 1 ms");
+		}
+		this.initialTimeout = initialTimeout;
+	}
+	
+	public long getMinTimeout() {
+		return minTimeout;
+	}
+	
+	public void setMinTimeout(long minTimeout) {
+		if (minTimeout < 1) {
+			throw new IllegalArgumentException("Minimum retransmission timeout must be at least 1 ms");
+		}
+		this.minTimeout = minTimeout;
+	}
+	
+	public long getMaxTimeout() {
+		return maxTimeout;
+	}
+	
+	public void setMaxTimeout(long maxTimeout) {
+		if (maxTimeout < 1) {
+			throw new IllegalArgumentException("Maximum retransmission timeout must be at least 1 ms");
+		}
+		this.maxTimeout = maxTimeout;
+	}
+	
+	public String getCongestionControl() {
+		return congestionControl;
+	}
+	
+	public void setCongestionControl(String congestionControl) {
+		congestionControl = congestionControl.toLowerCase();
+		if (!congestionControl.equals("reno") && !congestionControl.equals("vegas") && !congestionControl.equals("none")) {
+			throw new IllegalArgumentException("Unknown congestion control: " + congestionControl);
+		}
+		this.congestionControl = congestionControl;
+	}
+	
+	public boolean isMemoryMapped() {
+		return isMemoryMapped;
+	}
+	
+	public void setMemoryMapped(boolean isMemoryMapped) {
+		this.isMemoryMapped = isMemoryMapped;
+	}
+	
+	public int getDataPacketSize() {
+		return dataPacketSize;
+	}
+	
+	public void setDataPacketSize(int dataPacketSize) {
+		// The meta-data packet has to fit as well
+		if (dataPacketSize < FileSender.SIZE_METADATA_PACKET || dataPacketSize > FileSender.MAX_SIZE_DATA_PACKET) {
+			throw new IllegalArgumentException("Packet size must be between " + FileSender.SIZE_METADATA_PACKET
+					+ " and " + FileSender.MAX_SIZE_DATA_PACKET);
+		}
+		this.dataPacketSize = dataPacketSize;
+	}
+	
+	public int getStreamCount() {
+		return streamCount;
+	}
+	
+	public void setStreamCount(int streamCount) {
+		if (streamCount < 1) {
+			throw new IllegalArgumentException("Stream count must be at least 1");
+		}
+		this.streamCount = streamCount;
+	}
+	
+	public int getFecDataShards() {
+		return fecDataShards;
+	}
+	
+	public int getFecParityShards() {
+		return fecParityShards;
+	}
+	
+	/**
+	 * Sends parityShards parity packets after every dataShards data packets,
+	 * a single parity packet is the XOR of the group. 0 data shards turn it off.
+	 */
+	public void setFec(int dataShards, int parityShards) {
+		if (dataShards != 0 && (dataShards < 1 || parityShards < 1 || dataShards + parityShards > ErasureCode.MAX_SHARDS)) {
+			throw new IllegalArgumentException("FEC needs at least 1 data and 1 parity packet, and at most "
+					+ ErasureCode.MAX_SHARDS + " packets per group");
+		}
+		fecDataShards = dataShards;
+		fecParityShards = parityShards;
+	}
+	
+	public String getCompression() {
+		return compression;
+	}
+	
+	public void setCompression(String compression) {
+		compression = compression.toLowerCase();
+		if (!compression.equals("none") && !compression.equals("deflate")) {
+			throw new IllegalArgumentException("Unknown compression: " + compression);
+		}
+		this.compression = compression;
+	}
+	
+	public int getCompressionBlockSize() {
+		return compressionBlockSize;
+	}
+	
+	public void setCompressionBlockSize(int compressionBlockSize) {
+		if (compressionBlockSize < 1 || compressionBlockSize > MAX_COMPRESSION_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between 1 and " + MAX_COMPRESSION_BLOCK_SIZE);
+		}
+		this.compressionBlockSize = compressionBlockSize;
+	}
+	
+	public int getDeltaBlockSize() {
+		return deltaBlockSize;
+	}
+	
+	public void setDeltaBlockSize(int deltaBlockSize) {
+		if (deltaBlockSize < 0 || deltaBlockSize > MAX_DELTA_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Delta block size must be between 0 and " + MAX_DELTA_BLOCK_SIZE);
+		}
+		this.deltaBlockSize = deltaBlockSize;
+	}
+	
+	public byte getChecksumType() {
+		return checksumType;
+	}
+	
+	public void setChecksumType(byte checksumType) {
+		this.checksumType = checksumType;
+	}
+	
+	public byte getDigestType() {
+		return digestType;
+	}
+	
+	public void setDigestType(byte digestType) {
+		this.digestType = digestType;
+	}
+	
+	public long getStatsInterval() {
+		return statsInterval;
+	}
+	
+	public void setStatsInterval(long statsInterval) {
+		if (statsInterval < 0) {
+			throw new IllegalArgumentException("Stats interval must not be negative");
+		}
+		this.statsInterval = statsInterval;
+	}
+	
+	public boolean isJmxEnabled() {
+		return isJmxEnabled;
+	}
+	
+	public void setJmxEnabled(boolean isJmxEnabled) {
+		this.isJmxEnabled = isJmxEnabled;
+	}
+	
+	public long getRateLimit() {
+		return rateLimit;
+	}
+	
+	public void setRateLimit(long rateLimit) {
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("Rate limit must not be negative");
+		}
+		this.rateLimit = rateLimit;
+	}
+	
+	public boolean isPaced() {
+		return isPaced;
+	}
+	
+	public void setPaced(boolean isPaced) {
+		this.isPaced = isPaced;
+	}
+	
+	public boolean isSparse() {
+		return isSparse;
+	}
+	
+	public void setSparse(boolean isSparse) {
+		this.isSparse = isSparse;
+	}
+	
+	public boolean isZeroRtt() {
+		return isZeroRtt;
+	}
+	
+	public void setZeroRtt(boolean isZeroRtt) {
+		this.isZeroRtt = isZeroRtt;
+	}
+	
+	/**
+	 * Bytes with an optional k, m or g suffix. Throws NumberFormatException for an empty value,
+	 * or one that does not fit in a long.
+	 */
+	public static long parseSize(String size) {
+		if (size.isEmpty()) {
+			throw new NumberFormatException("Empty size");
+		}
+		char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+		int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+		if (shift > 0) {
+			size = size.substring(0, size.length() - 1);
+		}
+		long value = Long.parseLong(size);
+		if (value > Long.MAX_VALUE >> shift || value < Long.MIN_VALUE >> shift) {
+			throw new NumberFormatException("Size out of range: " + size);
+		}
+		return value << shift;
+	}
+	
+	/**
+	 * Creates the RTT estimator of a connection, converting the timeouts to nanoseconds.
+	 */
+	public RttEstimator createRttEstimator() {
+		return new RttEstimator(initialTimeout * 1000000L, minTimeout * 1000000L, maxTimeout * 1000000L);
+	}
+	
+	/**
+	 * Returns the codec of the blocks, or null without compression.
+	 */
+	public BlockCodec createCodec() {
+		switch (compression) {
+		case "deflate":
+			return new DeflateCodec();
+		default:
+			return null;
+		}
+	}
+	
+	public CongestionController createCongestionController() {
+		switch (congestionControl) {
+		case "vegas":
+			return new DelayCongestionController();
+		case "none":
+			// Only limited by the window size
+			return new CongestionController() {
+				@Override
+				public void onAck(int ackedPackets, long rtt) {}
+				
+				@Override
+				public void onLoss() {}
+				
+				@Override
+				public void onTimeout() {}
+				
+				@Override
+				public int getWindow() {
+					return Integer.MAX_VALUE;
+				}
+				
+				@Override
+				public boolean isSlowStart() {
+					return false;
+				}
+			};
+		default:
+			return new RenoCongestionController();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends many files to a FileReceiver (in daemon mode) from a single JVM, at most maxTransfers of them at once.
+ * 
+ * Every stream of every file runs on a thread of its own, a virtual thread where the JDK has them (21 and later)
+ * and a cached platform thread otherwise. The senders wait for their ACKs through a shared SocketPoller instead
+ * of a selector each, which parks a virtual thread instead of blocking its carrier, and take their windows from
+ * a shared PacketBufferPool instead of allocating direct buffers for every file. Every stream still has a socket
+ * of its own, as the receiver tells the transfers apart by their source address and ACKs carry no session ID.
+ * 
+ * File list of main(), one file per line
+ * <src_file> <dest_file>
+ */
+public class TransferService implements AutoCloseable {
+	public static final String USAGE = "<host> <port> <file_list|-> [transfers=<n>] " + TransferOptions.USAGE;
+	public static final int DEFAULT_MAX_TRANSFERS = 256;
+	
+	private final String host;
+	private final int port;
+	private final TransferOptions options;
+	private final ExecutorService executor;
+	private final int maxTransfers;
+	private final Semaphore transferSlots;
+	private final SocketPoller poller;
+	private final PacketBufferPool bufferPool;
+	
+	public TransferService(String host, int port, TransferOptions options) throws IOException {
+		this(host, port, options, DEFAULT_MAX_TRANSFERS);
+	}
+	
+	public TransferService(String host, int port, TransferOptions options, int maxTransfers) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.options = options;
+		if (maxTransfers < 1) {
+			throw new IllegalArgumentException("Number of transfers must be at least 1");
+		}
+		executor = newThreadPerTaskExecutor();
+		this.maxTransfers = maxTransfers;
+		transferSlots = new Semaphore(maxTransfers);
+		poller = new SocketPoller();
+		// Grows as more transfers run at once, and keeps the buffers for the next ones
+		bufferPool = new PacketBufferPool(options.getWindowSize(), options.getDataPacketSize());
+	}
+	
+	/**
+	 * Executor starting a virtual thread for every task, or a platform thread before JDK 21.
+	 */
+	static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			// Looked up at run time so that the class still compiles and runs on JDK 17
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "TransferService");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	/**
+	 * Starts sending a file, waiting while maxTransfers files are being sent. The future completes
+	 * once every stream of the file has been ACKed, or with the exception that stopped the transfer.
+	 */
+	public CompletableFuture<Void> submit(String srcFilePath, String destFilePath) {
+		CompletableFuture<Void> result = new CompletableFuture<Void>();
+		try {
+			// Waiting here rather than in the task keeps the platform threads down to maxTransfers before JDK 21
+			transferSlots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.completeExceptionally(e);
+			return result;
+		}
+		executor.execute(() -> {
+			try {
+				send(srcFilePath, destFilePath);
+				result.complete(null);
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				transferSlots.release();
+			}
+		});
+		return result;
+	}
+	
+	private void send(String srcFilePath, String destFilePath) throws IOException, InterruptedException {
+		ArrayList<FileSender> streams = FileSender.createStreams(host, port, srcFilePath, destFilePath, options);
+		try {
+			for (FileSender fs : streams) {
+				fs.setSocketPoller(poller);
+				fs.setBufferPool(bufferPool);
+			}
+		} catch (IOException e) {
+			for (FileSender fs : streams) {
+				fs.close();
+			}
+			throw e;
+		}
+		if (streams.size() == 1) {
+			streams.get(0).send();
+			return;
+		}
+		
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+		for (FileSender fs : streams) {
+			results.add(executor.submit(() -> {
+				fs.send();
+				return null;
+			}));
+		}
+		IOException error = null;
+		for (Future<?> stream : results) {
+			try {
+				stream.get();
+			} catch (ExecutionException e) {
+				if (error == null) {
+					error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	/**
+	 * Waits for the files that have been submitted, and stops the poller.
+	 */
+	public void close() throws IOException {
+		try {
+			// The files still being sent may start threads for their streams
+			transferSlots.acquire(maxTransfers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdown();
+		poller.close();
+	}
+	
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: TransferService " + USAGE);
+			System.exit(-1);
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		String fileList = args[2];
+		int maxTransfers = DEFAULT_MAX_TRANSFERS;
+		ArrayList<String> senderArgs = new ArrayList<String>();
+		TransferOptions options = null;
+		try {
+			for (int i = 3; i < args.length; i++) {
+				if (args[i].toLowerCase().startsWith("transfers=")) {
+					String value = args[i].substring("transfers=".length());
+					try {
+						maxTransfers = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						maxTransfers = 0;
+					}
+					if (maxTransfers < 1) {
+						throw new IllegalArgumentException("Number of transfers must be at least 1: " + value);
+					}
+				} else {
+					senderArgs.add(args[i]);
+				}
+			}
+			options = TransferOptions.parse(senderArgs.toArray(new String[0]), 0);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: TransferService " + USAGE);
+			System.exit(-1);
+		}
+		
+		ArrayList<String> srcFilePaths = new ArrayList<String>();
+		ArrayList<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+		long startTime = System.nanoTime();
+		boolean isListRead = true;
+		try (BufferedReader reader = new BufferedReader(fileList.equals("-") ? new InputStreamReader(System.in) : new FileReader(fileList));
+				TransferService service = new TransferService(host, port, options, maxTransfers)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] paths = line.trim().split("\\s+");
+				if (paths.length != 2) {
+					continue;
+				}
+				srcFilePaths.add(paths[0]);
+				results.add(service.submit(paths[0], paths[1]));
+			}
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.getMessage());
+			isListRead = false;
+		}
+		
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).join();
+			} catch (RuntimeException e) {
+				System.out.println("Unable to send " + srcFilePaths.get(i) + ": " + e.getCause());
+				failed += 1;
+			}
+		}
+		System.out.println("Sent " + (results.size() - failed) + " of " + results.size() + " files in "
+				+ (System.nanoTime() - startTime) / 1000000 + "ms");
+		if (!isListRead || failed > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,513 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Unreliable relay between FileSender and FileReceiver on the local machine, for
+ * reproducible tests of the protocol under loss. Packets from every client to the
+ * listening port are forwarded to the destination from a socket of their own, so that
+ * the receiver can tell the clients apart, and the replies are sent back the same way.
+ * 
+ * Every packet is dropped, corrupted (one byte flipped) or reordered (held back until
+ * the next packet in the same direction has gone out) with the configured rates, and
+ * delayed by the fixed delay plus a uniform jitter. The decisions come from a Random
+ * with a fixed seed per direction, so a run can be repeated as long as the packets
+ * arrive in the same order.
+ * 
+ * The decisions can also be taken from a trace, which is recorded with record=<file>.
+ * Trace file, one line per direction, lines starting with # are ignored
+ * > actions for the packets towards the destination
+ * < actions for the packets back to the clients
+ * Every action is a character: . forward, d drop, c corrupt, r reorder. Whitespace is
+ * ignored, and a trace starts over once it has run out.
+ */
+public class UnreliNet implements Runnable {
+	public static final String USAGE = "[drop=<rate>] [corrupt=<rate>] [reorder=<rate>] [delay=<ms>] [jitter=<ms>] [seed=<n>] [trace=<file>] [record=<file>]";
+	
+	public static final char ACTION_FORWARD = '.';
+	public static final char ACTION_DROP = 'd';
+	public static final char ACTION_CORRUPT = 'c';
+	public static final char ACTION_REORDER = 'r';
+	// Largest UDP payload over IPv4
+	public static final int MAX_SIZE_PACKET = 65507;
+	// Time a reordered packet waits for the next one before it is sent anyway (ms)
+	public static final int REORDER_TIMEOUT = 10;
+	
+	/**
+	 * Packet waiting for its delay to pass.
+	 */
+	private static class Delivery implements Comparable<Delivery> {
+		long time;
+		// Packets due at the same time keep the order in which they were scheduled
+		long order;
+		DatagramChannel channel;
+		// null for the connected channels towards the destination
+		SocketAddress target;
+		ByteBuffer data;
+		
+		public int compareTo(Delivery other) {
+			if (time != other.time) {
+				return Long.compare(time, other.time);
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+	
+	/**
+	 * Decisions and statistics of one direction.
+	 */
+	private static class Direction {
+		char symbol;
+		Random random;
+		String trace;
+		int tracePosition;
+		StringBuilder record;
+		// Reordered packet waiting for the next one
+		Delivery held;
+		long forwarded, dropped, corrupted, reordered;
+		
+		Direction(char symbol, long seed) {
+			this.symbol = symbol;
+			random = new Random(seed);
+		}
+	}
+	
+	private int listenPort;
+	private InetSocketAddress destination;
+	private double dropRate, corruptRate, reorderRate;
+	private long delay, jitter;
+	private long seed = 2105;
+	private String tracePath, recordPath;
+	
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer packetBuffer;
+	// Channels towards the destination by client, and the client of every such channel
+	private HashMap<SocketAddress, DatagramChannel> upstreams;
+	private HashMap<DatagramChannel, SocketAddress> clients;
+	private PriorityQueue<Delivery> deliveries;
+	private long deliveryCount;
+	private Direction toDestination, toClient;
+	private volatile boolean isClosed;
+	private Thread thread;
+	
+	private static Logger log = Logger.getLogger(UnreliNet.class.getName());
+	
+	/**
+	 * Relay from listenPort (0 for any free port) to destination. The settings
+	 * have to be made before the relay is opened.
+	 */
+	public UnreliNet(int listenPort, InetSocketAddress destination) {
+		this.listenPort = listenPort;
+		this.destination = destination;
+	}
+	
+	public static UnreliNet parse(String[] args) {
+		UnreliNet net = new UnreliNet(Integer.parseInt(args[0]), new InetSocketAddress(args[1], Integer.parseInt(args[2])));
+		for (int i = 3; i < args.length; i++) {
+			String arg = args[i];
+			int separator = arg.indexOf('=');
+			if (separator == -1) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+			String key = arg.substring(0, separator).toLowerCase();
+			String value = arg.substring(separator + 1);
+			try {
+				net.set(key, value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+			}
+		}
+		return net;
+	}
+	
+	private void set(String key, String value) {
+		switch (key) {
+		case "drop":
+			setDropRate(Double.parseDouble(value));
+			break;
+		case "corrupt":
+			setCorruptRate(Double.parseDouble(value));
+			break;
+		case "reorder":
+			setReorderRate(Double.parseDouble(value));
+			break;
+		case "delay":
+			setDelay(Long.parseLong(value));
+			break;
+		case "jitter":
+			setJitter(Long.parseLong(value));
+			break;
+		case "seed":
+			setSeed(Long.parseLong(value));
+			break;
+		case "trace":
+			setTracePath(value);
+			break;
+		case "record":
+			setRecordPath(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: " + key);
+		}
+	}
+	
+	private static double checkRate(double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("Rates must be between 0 and 1: " + rate);
+		}
+		return rate;
+	}
+	
+	public void setDropRate(double dropRate) {
+		this.dropRate = checkRate(dropRate);
+	}
+	
+	public void setCorruptRate(double corruptRate) {
+		this.corruptRate = checkRate(corruptRate);
+	}
+	
+	public void setReorderRate(double reorderRate) {
+		this.reorderRate = checkRate(reorderRate);
+	}
+	
+	/**
+	 * Fixed delay of every packet (ms).
+	 */
+	public void setDelay(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Delay must not be negative");
+		}
+		this.delay = delay;
+	}
+	
+	/**
+	 * Largest random delay added to the fixed delay (ms).
+	 */
+	public void setJitter(long jitter) {
+		if (jitter < 0) {
+			throw new IllegalArgumentException("Jitter must not be negative");
+		}
+		this.jitter = jitter;
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	public void setTracePath(String tracePath) {
+		this.tracePath = tracePath;
+	}
+	
+	public void setRecordPath(String recordPath) {
+		this.recordPath = recordPath;
+	}
+	
+	/**
+	 * Binds the listening port, and returns it.
+	 */
+	public int open() throws IOException {
+		toDestination = new Direction('>', seed);
+		toClient = new Direction('<', seed + 1);
+		if (tracePath != null) {
+			loadTrace();
+		}
+		if (recordPath != null) {
+			toDestination.record = new StringBuilder();
+			toClient.record = new StringBuilder();
+		}
+		upstreams = new HashMap<SocketAddress, DatagramChannel>();
+		clients = new HashMap<DatagramChannel, SocketAddress>();
+		deliveries = new PriorityQueue<Delivery>();
+		packetBuffer = ByteBuffer.allocateDirect(MAX_SIZE_PACKET);
+		
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(listenPort));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		listenPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		return listenPort;
+	}
+	
+	/**
+	 * Runs the relay on a daemon thread of its own, for tests within the same process.
+	 */
+	public void start() throws IOException {
+		if (channel == null) {
+			open();
+		}
+		thread = new Thread(this, "UnreliNet-" + listenPort);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public int getListenPort() {
+		return listenPort;
+	}
+	
+	private void loadTrace() throws IOException {
+		StringBuilder forward = new StringBuilder();
+		StringBuilder backward = new StringBuilder();
+		for (String line : Files.readAllLines(Paths.get(tracePath))) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			StringBuilder actions = line.charAt(0) == '>' ? forward : line.charAt(0) == '<' ? backward : null;
+			if (actions == null) {
+				throw new IOException("Trace lines must start with > or <: " + line);
+			}
+			for (int i = 1; i < line.length(); i++) {
+				char action = line.charAt(i);
+				if (action == ACTION_FORWARD || action == ACTION_DROP || action == ACTION_CORRUPT || action == ACTION_REORDER) {
+					actions.append(action);
+				} else if (!Character.isWhitespace(action)) {
+					throw new IOException("Unknown action in trace: " + action);
+				}
+			}
+		}
+		toDestination.trace = forward.length() > 0 ? forward.toString() : null;
+		toClient.trace = backward.length() > 0 ? backward.toString() : null;
+	}
+	
+	public void run() {
+		if (thread == null) {
+			thread = Thread.currentThread();
+		}
+		try {
+			while (!isClosed) {
+				long now = System.nanoTime();
+				sendDueDeliveries(now);
+				
+				long timeout = 0;
+				Delivery next = deliveries.peek();
+				if (next != null) {
+					timeout = Math.max(1, (next.time - now) / 1000000);
+				}
+				if (toDestination.held != null || toClient.held != null) {
+					timeout = timeout == 0 ? REORDER_TIMEOUT : Math.min(timeout, REORDER_TIMEOUT);
+				}
+				selector.select(timeout);
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					DatagramChannel source = (DatagramChannel) keys.next().channel();
+					keys.remove();
+					receive(source);
+				}
+				releaseStaleHeld(toDestination, System.nanoTime());
+				releaseStaleHeld(toClient, System.nanoTime());
+			}
+		} catch (IOException e) {
+			if (!isClosed) {
+				System.out.println("UnreliNet stopped: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Drains every packet waiting on the channel.
+	 */
+	private void receive(DatagramChannel source) throws IOException {
+		while (true) {
+			packetBuffer.clear();
+			SocketAddress address = source.receive(packetBuffer);
+			if (address == null) {
+				return;
+			}
+			packetBuffer.flip();
+			if (source == channel) {
+				DatagramChannel upstream = upstreams.get(address);
+				if (upstream == null) {
+					upstream = DatagramChannel.open();
+					upstream.connect(destination);
+					upstream.configureBlocking(false);
+					upstream.register(selector, SelectionKey.OP_READ);
+					upstreams.put(address, upstream);
+					clients.put(upstream, address);
+					log.fine("New client " + address);
+				}
+				relay(toDestination, packetBuffer, upstream, null);
+			} else {
+				relay(toClient, packetBuffer, channel, clients.get(source));
+			}
+		}
+	}
+	
+	private char nextAction(Direction direction) {
+		if (direction.trace != null) {
+			char action = direction.trace.charAt(direction.tracePosition);
+			direction.tracePosition = (direction.tracePosition + 1) % direction.trace.length();
+			return action;
+		}
+		Random random = direction.random;
+		// Every rate has its own draw, so that changing one rate keeps the other decisions
+		boolean isDropped = random.nextDouble() < dropRate;
+		boolean isCorrupted = random.nextDouble() < corruptRate;
+		boolean isReordered = random.nextDouble() < reorderRate;
+		return isDropped ? ACTION_DROP : isCorrupted ? ACTION_CORRUPT : isReordered ? ACTION_REORDER : ACTION_FORWARD;
+	}
+	
+	private void relay(Direction direction, ByteBuffer packet, DatagramChannel out, SocketAddress target) throws IOException {
+		char action = nextAction(direction);
+		if (direction.record != null) {
+			direction.record.append(action);
+		}
+		if (action == ACTION_DROP) {
+			direction.dropped += 1;
+			return;
+		}
+		
+		Delivery delivery = new Delivery();
+		delivery.channel = out;
+		delivery.target = target;
+		delivery.data = ByteBuffer.allocate(packet.remaining());
+		delivery.data.put(packet);
+		delivery.data.flip();
+		long now = System.nanoTime();
+		delivery.time = now + delay * 1000000L + (jitter > 0 ? (long) (direction.random.nextDouble() * jitter * 1000000L) : 0);
+		if (action == ACTION_CORRUPT && delivery.data.hasRemaining()) {
+			int position = direction.random.nextInt(delivery.data.remaining());
+			delivery.data.put(position, (byte) (delivery.data.get(position) ^ 0xff));
+			direction.corrupted += 1;
+		}
+		if (action == ACTION_REORDER && direction.held == null) {
+			// Its time is when it has been held for too long
+			delivery.time = now;
+			direction.held = delivery;
+			direction.reordered += 1;
+			return;
+		}
+		
+		schedule(delivery);
+		direction.forwarded += 1;
+		if (direction.held != null) {
+			// Goes out right after the packet that overtook it
+			Delivery held = direction.held;
+			direction.held = null;
+			held.time = delivery.time;
+			schedule(held);
+			direction.forwarded += 1;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine(direction.symbol + " " + action + " " + delivery.data.remaining());
+		}
+	}
+	
+	private void releaseStaleHeld(Direction direction, long now) throws IOException {
+		Delivery held = direction.held;
+		if (held != null && now - held.time >= REORDER_TIMEOUT * 1000000L) {
+			direction.held = null;
+			held.time = now;
+			schedule(held);
+			direction.forwarded += 1;
+		}
+	}
+	
+	private void schedule(Delivery delivery) throws IOException {
+		delivery.order = deliveryCount++;
+		if (delivery.time <= System.nanoTime() && deliveries.isEmpty()) {
+			send(delivery);
+		} else {
+			deliveries.add(delivery);
+		}
+	}
+	
+	private void sendDueDeliveries(long now) throws IOException {
+		while (!deliveries.isEmpty() && deliveries.peek().time <= now) {
+			send(deliveries.poll());
+		}
+	}
+	
+	private void send(Delivery delivery) throws IOException {
+		try {
+			// A full socket buffer drops the packet, as a congested link would
+			if (delivery.target == null) {
+				delivery.channel.write(delivery.data);
+			} else {
+				delivery.channel.send(delivery.data, delivery.target);
+			}
+		} catch (IOException e) {
+			// Nobody listening at the other end (yet)
+			log.fine("Unable to relay a packet: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stops the relay, writing the recorded trace if there is one.
+	 */
+	public void close() throws IOException {
+		isClosed = true;
+		selector.wakeup();
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (DatagramChannel upstream : upstreams.values()) {
+			upstream.close();
+		}
+		channel.close();
+		selector.close();
+		if (recordPath != null) {
+			try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(recordPath)))) {
+				writer.println("# UnreliNet trace, seed " + seed);
+				writer.println(toDestination.symbol + " " + toDestination.record);
+				writer.println(toClient.symbol + " " + toClient.record);
+			}
+		}
+	}
+	
+	/**
+	 * Number of packets towards the destination and back that were
+	 * forwarded, dropped, corrupted and reordered.
+	 */
+	public String getStatistics() {
+		return String.format("> forwarded %d dropped %d corrupted %d reordered %d, < forwarded %d dropped %d corrupted %d reordered %d",
+				toDestination.forwarded, toDestination.dropped, toDestination.corrupted, toDestination.reordered,
+				toClient.forwarded, toClient.dropped, toClient.corrupted, toClient.reordered);
+	}
+	
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: UnreliNet <listen_port> <dest_host> <dest_port> " + USAGE);
+			System.exit(-1);
+		}
+		UnreliNet net = null;
+		try {
+			net = parse(args);
+			net.open();
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+		
+		UnreliNet relay = net;
+		// Ctrl-C stops the relay, which prints the statistics and writes the recorded trace
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				relay.close();
+			} catch (IOException e) {
+				System.out.println("Unable to write the trace: " + e.getMessage());
+			}
+			System.out.println(relay.getStatistics());
+		}));
+		net.run();
+	}
+}